@@ -6,7 +6,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -22,16 +21,12 @@ import org.ofbiz.core.entity.GenericValue;
 import com.atlassian.jira.user.UserUtils;
 import com.atlassian.jira.ComponentManager;
 import com.atlassian.jira.ManagerFactory;
-import com.atlassian.jira.config.ConstantsManager;
 import com.atlassian.jira.exception.CreateException;
 import com.atlassian.jira.issue.Issue;
-import com.atlassian.jira.issue.IssueFieldConstants;
 import com.atlassian.jira.issue.IssueImpl;
 import com.atlassian.jira.issue.MutableIssue;
 import com.atlassian.jira.issue.fields.CustomField;
 import com.atlassian.jira.issue.fields.SummarySystemField;
-import com.atlassian.jira.issue.issuetype.IssueType;
-import com.atlassian.jira.issue.security.IssueSecurityLevelManager;
 import com.atlassian.jira.mail.MailThreadManager;
 import com.atlassian.jira.project.Project;
 import com.atlassian.jira.project.ProjectManager;
@@ -40,8 +35,6 @@ import com.atlassian.jira.service.util.handler.MessageHandlerContext;
 import com.atlassian.jira.service.util.handler.MessageHandlerErrorCollector;
 import com.atlassian.jira.plugins.mail.handlers.AbstractMessageHandler;
 
-import com.atlassian.jira.util.EasyList;
-import com.atlassian.jira.web.bean.FieldVisibilityBean;
 import com.atlassian.jira.workflow.WorkflowFunctionUtils;
 import com.atlassian.mail.MailUtils;
 import com.atlassian.crowd.embedded.api.User;
@@ -59,7 +52,6 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
     private static final Logger log = Logger.getLogger(AdvancedCreateIssueHandler.class);
     private IssueDescriptor issueDescriptor;
     public String projectKey = null;         // chosen project for the new issue
-    public String issueType;                 // chosen issue type 
     public String defaultProjectKey = null;  // default project where new issues are created
     public String defaultIssueType = null;   // default type for new issues
     public String defaultComponentName = null;   // default component for new issues in the default project
@@ -95,8 +87,39 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
     }
     
     public boolean handleMessage(Message message, MessageHandlerContext context) throws MessagingException {
+        return handleMessage(message, context, issueDescriptor);
+    }
+
+    /**
+     * Creates an issue from a message. The handler is initialized once and may be 
+     * shared across messages, hence the issue descriptor of the message is given here.
+     * 
+     * @param message  the message to create the issue from
+     * @param context  the context of the message handling
+     * @param issueDescriptor  the directives parsed from <code>message</code>
+     * @return  whether the message must be deleted
+     * @throws MessagingException
+     */
+    public boolean handleMessage(Message message, MessageHandlerContext context, IssueDescriptor issueDescriptor) throws MessagingException {
+        return handleMessage(message, context, new ProcessingContext(issueDescriptor));
+    }
+
+    /**
+     * Creates an issue from a message, reusing the users and projects already 
+     * resolved while processing it.
+     * 
+     * @param message  the message to create the issue from
+     * @param context  the context of the message handling
+     * @param processingContext  the directives parsed from <code>message</code> and 
+     *        the entities resolved for it
+     * @return  whether the message must be deleted
+     * @throws MessagingException
+     */
+    boolean handleMessage(Message message, MessageHandlerContext context, ProcessingContext processingContext) throws MessagingException {
         log.debug("AdvancedCreateIssueHandler.handleMessage");
         
+        IssueDescriptor issueDescriptor = processingContext.getIssueDescriptor();
+        String issueType;
         if (issueDescriptor.getIssueType() != null) {   
         	issueType = issueDescriptor.getIssueType();
         } else {
@@ -111,11 +134,10 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
         	String reporterName = issueDescriptor.getReporter();
         	// Sets the reporter specified in the tag, or the sender of the message, 
         	// or the default reporter
-        	User reporter = (
-        			reporterName != null && getUserByName(reporterName) != null ?
-        					getUserByName(reporterName) :
-       						getReporter(message, context)	
-        	);
+        	User reporter = processingContext.getUserByName(reporterName);
+        	if (reporter == null) {
+        		reporter = getReporter(message, context);
+        	}
             if (reporter == null) {
                 String errorMessage = "Sender is anonymous, no default reporter specified and creating users " +
                         "is set to false (or external user managment is enabled). Message rejected.";
@@ -124,11 +146,11 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
                 return false;
             }
 
-            Project project = getProject();
+            Project project = getProject(processingContext);
             log.debug("Project = " + project);
             boolean usingDefaultProject = false;
             if (project == null) {
-            	project = getProjectManager().getProjectObjByKey(defaultProjectKey.toUpperCase());
+            	project = processingContext.getProjectByKey(defaultProjectKey.toUpperCase());
             	if(! (project == null) ) {
             		usingDefaultProject = true;
             	}
@@ -141,7 +163,7 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
             }
             
             log.debug("Issue Type Key = = " + issueType);
-            if (!hasValidIssueType()) {
+            if (!hasValidIssueType(issueType)) {
                 String errorMessage = "Cannot handle message as Issue Type is null or invalid";
                 log.warn(errorMessage);
                 //addError(errorMessage);
@@ -157,20 +179,22 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
                 summary = summary.substring(0, SummarySystemField.MAX_LEN.intValue() - 3) + "...";
             }
 
+            IssueCreationProfileCache.Profile profile = IssueCreationProfileCache.getInstance()
+            		.getProfile(project, issueType);
+
             // JRA-7646 - check if priority/description is hidden - if so, do not set
             String priority = null;
             String description = null;
-            FieldVisibilityBean visibility = new FieldVisibilityBean();
 
-            if (!visibility.isFieldHiddenInAllSchemes(project.getId(), IssueFieldConstants.PRIORITY, EasyList.build(issueType))) {
+            if (profile.isPriorityVisible()) {
             	if(issueDescriptor.getPriorityId() != null){
                   priority = issueDescriptor.getPriorityId().toString();
             	}else{
-            	  priority = getDefaultSystemPriority();
+            	  priority = profile.getDefaultPriorityId();
             	}
             }
 
-            if (!visibility.isFieldHiddenInAllSchemes(project.getId(), IssueFieldConstants.DESCRIPTION, EasyList.build(issueType))) {
+            if (profile.isDescriptionVisible()) {
                 description = getDescription(reporter, message);
             }
 
@@ -192,13 +216,9 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
             // Sets the assignee specified in the tag, or the first valid Cc'ed assignee, 
             // or else the default assignee
             String assigneeName = issueDescriptor.getAssignee();
-            User assignee = null;
-            if (
-            		assigneeName != null && 
-            		getUserByName(assigneeName) != null && 
-            		isValidAssignee(project, getUserByName(assigneeName))) {
-            	assignee = getUserByName(assigneeName);
-            } else {
+            User assignee = processingContext.getUserByName(assigneeName);
+            if (assignee == null || !isValidAssignee(project, assignee)) {
+            	assignee = null;
             	if (ccAssignee) {
             		assignee = getFirstValidAssignee(message.getAllRecipients(), project);
             	}
@@ -218,7 +238,7 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
         		Collection components = new ArrayList();
             	for (int i = 0; i < comps.length; i++) {
             		
-            		GenericValue component = getProjectManager().getComponent(project.getGenericValue(), comps[i]);
+            		GenericValue component = ProjectComponentIndex.getInstance().getComponent(project, comps[i]);
             		if (component != null) {
             			components.add(component);
             		}
@@ -232,7 +252,7 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
                 GenericValue defaultComponent = null;
                 if(usingDefaultProject && project != null){
                 	// Try and set a default component too
-                	defaultComponent = getProjectManager().getComponent(project.getGenericValue(),defaultComponentName);
+                	defaultComponent = ProjectComponentIndex.getInstance().getComponent(project, defaultComponentName);
                 	if(defaultComponent == null){
                 		String errorMessage = "Cannot set default component on new issue as component does not exist";
                         log.info(errorMessage);
@@ -246,16 +266,17 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
             }
 
             // Ensure issue level security is correct
-            setDefaultSecurityLevel(issueObject);
+            if (profile.getDefaultSecurityLevelId() != null) {
+                issueObject.setSecurityLevelId(profile.getDefaultSecurityLevelId());
+            }
 
             Map fields = new HashMap();
             fields.put("issue", issueObject);
             GenericValue originalIssueGV = ComponentManager.getInstance().getIssueManager().getIssue(issueObject.getId());
 
             // Give the CustomFields a chance to set their default values JRA-11762
-            List customFieldObjects = ComponentManager.getInstance().getCustomFieldManager().getCustomFieldObjects(issueObject);
-            for (Iterator iterator = customFieldObjects.iterator(); iterator.hasNext();) {
-                CustomField customField = (CustomField) iterator.next();
+            // (only those having one, the others would set null)
+            for (CustomField customField : CustomFieldDefaultsCache.getInstance().getFieldsWithDefaults(issueObject)) {
                 issueObject.setCustomFieldValue(customField,  customField.getDefaultValue(issueObject));
             }
 
@@ -288,37 +309,46 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
     }
 
     
-    protected Project getProject() {
-    	String pkey = issueDescriptor.getProjectKey();
-    	if (
-    			pkey != null && 
-    			!pkey.equals("") &&
-    			getProjectManager().getProjectObjByKey(pkey.toUpperCase()) != null) {
-    		return getProjectManager().getProjectObjByKey(pkey.toUpperCase());    	
+    Project getProject(ProcessingContext processingContext) {
+    	String pkey = processingContext.getIssueDescriptor().getProjectKey();
+    	if (pkey != null && !pkey.equals("")) {
+    		return processingContext.getProjectByKey(pkey.toUpperCase());
     	} else {
     		return null;
     	}
     }
 
     
-    protected boolean hasValidIssueType() {
+    protected boolean hasValidIssueType(String issueType) {
         // if there is no project then the issue cannot be created
         if (issueType == null) {
             log.debug("Issue Type NOT set. Cannot find Issue type.");
             return false;
         }
 
-        IssueType issueTypeObject = ManagerFactory.getConstantsManager().getIssueTypeObject(issueType);
-        if (issueTypeObject == null) {
+        String issueTypeName = ConstantsCache.getInstance().getIssueTypeName(issueType);
+        if (issueTypeName == null) {
             log.debug("Issue Type does not exist with id of " + issueType);
             return false;
         }
 
-        log.debug("Issue Type Object = " + issueTypeObject.getName());
+        log.debug("Issue Type Object = " + issueTypeName);
         return true;
     }
 
     
+    /**
+     * Records the issue of the message in JIRA, and in memory for the replies
+     * to come (see {@link MessageThreadIndex}).
+     */
+    @Override
+    protected void recordMessageId(String type, Message message, Long issueId, MessageHandlerContext context)
+            throws MessagingException {
+        super.recordMessageId(type, message, issueId, context);
+        MessageThreadIndex.getInstance().putRecorded(message, issueId, context);
+    }
+
+    
     protected ProjectManager getProjectManager() {
         return ManagerFactory.getProjectManager();
     }
@@ -367,7 +397,7 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
             }
         }
 	
-		if (UserUtils.getUserByEmail(firstSender) == null) {
+		if (UserEmailIndex.getInstance().getUserByEmail(firstSender) == null) {
 			description = "{panel:bgColor=yellow}" +
 					"*WARNING* - the issue REPORTER was not initially a known JIRA user - " +
 					"it was automatically set to a generic support account, please correct this as necessary." +
@@ -382,30 +412,6 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
 
     
 
-    /**
-     * @deprecated This method calls deprecated JIRA methods - update it soon !
-     */
-    private String getDefaultSystemPriority() {
-        // if priority header is not set, assume it's 'default'
-        ConstantsManager constantsManager = ManagerFactory.getConstantsManager();
-        GenericValue defaultPriority = constantsManager.getDefaultPriority();
-        if (defaultPriority != null) {
-            return defaultPriority.getString("id");
-        } else {
-            log.error("Default priority was null. Using the 'middle' priority.");
-
-            Collection priorities = constantsManager.getPriorities();
-            Iterator priorityIt = priorities.iterator();
-            int times = (int) Math.ceil((double) priorities.size() / 2d);
-            for (int i = 0; i < times; i++) {
-                defaultPriority = (GenericValue) priorityIt.next();
-            }
-
-            return defaultPriority.getString("id");
-        }
-    }
-
-    
     /**
      * Given an array of addresses, returns the first valid assignee for the appropriate project.
      * 
@@ -423,7 +429,7 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
             if (addresses[i] instanceof InternetAddress) {
                 InternetAddress email = (InternetAddress) addresses[i];
 
-                User validUser = UserUtils.getUserByEmail(email.getAddress());
+                User validUser = UserEmailIndex.getInstance().getUserByEmail(email.getAddress());
                 
                 if (validUser != null) {
                 	log.error("The user meant no be an assignee is unknown.");
@@ -462,20 +468,6 @@ public class AdvancedCreateIssueHandler extends AbstractMessageHandler {
     }
     
     
-    private void setDefaultSecurityLevel(MutableIssue issue) throws Exception {
-        GenericValue project = issue.getProject();
-        if (
-//        		isEnterprise() && 
-        		project != null) {
-            IssueSecurityLevelManager issueSecurityLevelManager = ManagerFactory.getIssueSecurityLevelManager();
-            final Long levelId = issueSecurityLevelManager.getSchemeDefaultSecurityLevel(project);
-            if (levelId != null) {
-                issue.setSecurityLevel(issueSecurityLevelManager.getIssueSecurity(levelId));
-            }
-        }
-    }
-
-    
 //    private boolean isEnterprise() {
 //        License license = LicenseManager.getInstance().getLicense(JiraLicenseUtils.JIRA_LICENSE_KEY);
 //        return (license != null && license.isLicenseLevel(EasyList.build(JiraLicenseUtils.JIRA_ENTERPRISE_LEVEL)));
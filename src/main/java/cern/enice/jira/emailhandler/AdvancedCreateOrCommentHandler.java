@@ -2,11 +2,12 @@ package cern.enice.jira.emailhandler;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,41 +16,39 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Part;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.Predicate;
 import org.apache.log4j.Logger;
 import org.ofbiz.core.entity.GenericValue;
 
-import com.atlassian.jira.user.UserUtils;
 import com.atlassian.jira.ComponentManager;
 import com.atlassian.jira.ManagerFactory;
 import com.atlassian.jira.bc.issue.IssueService;
 import com.atlassian.jira.bc.issue.IssueService.IssueResult;
+import com.atlassian.jira.bc.issue.IssueService.TransitionValidationResult;
 import com.atlassian.jira.bc.issue.IssueService.UpdateValidationResult;
-import com.atlassian.jira.config.ConstantsManager;
 import com.atlassian.jira.issue.Issue;
 import com.atlassian.jira.issue.IssueFieldConstants;
 import com.atlassian.jira.issue.IssueInputParameters;
 import com.atlassian.jira.issue.IssueInputParametersImpl;
-import com.atlassian.jira.issue.IssueManager;
-import com.atlassian.jira.issue.IssueUtilsBean;
 import com.atlassian.jira.issue.MutableIssue;
-import com.atlassian.jira.issue.fields.Field;
-import com.atlassian.jira.issue.resolution.Resolution;
+import com.atlassian.jira.issue.fields.screen.FieldScreen;
 import com.atlassian.jira.security.JiraAuthenticationContext;
-import com.atlassian.jira.service.util.ServiceUtils;
+import com.atlassian.jira.user.UserUtils;
 import com.atlassian.jira.service.util.handler.MessageHandlerContext;
 import com.atlassian.jira.service.util.handler.MessageHandlerErrorCollector;
 import com.atlassian.jira.plugins.mail.handlers.AbstractMessageHandler;
 import com.atlassian.jira.util.ErrorCollection;
 import com.atlassian.jira.util.JiraUtils;
+import com.atlassian.jira.web.bean.WorkflowActionsBean;
 import com.atlassian.jira.workflow.IssueWorkflowManagerImpl;
 import com.atlassian.jira.workflow.JiraWorkflow;
 import com.atlassian.jira.workflow.WorkflowManager;
 import com.atlassian.jira.workflow.WorkflowTransitionUtil;
 import com.atlassian.jira.workflow.WorkflowTransitionUtilImpl;
+import com.atlassian.jira.mail.MailThreadManager;
 import com.atlassian.mail.MailUtils;
 import com.atlassian.crowd.embedded.api.User;
+import com.opensymphony.util.TextUtils;
 import com.opensymphony.workflow.loader.ActionDescriptor;
 import com.atlassian.jira.workflow.IssueWorkflowManager;
 
@@ -68,6 +67,10 @@ import com.atlassian.jira.workflow.IssueWorkflowManager;
  */
 public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 
+	/**
+	 * @deprecated The whitelist is now compiled once in init, see
+	 *             {@link WhitelistMatcher}.
+	 */
 	public class RegexpWhitelistMatchPredicate implements Predicate {
 
 		String m_fromAddress;
@@ -111,8 +114,66 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 	 */
 	public Map<String, SubjectRegexpReplace> subjectregexps = new HashMap<String, SubjectRegexpReplace>();
 
+	/** The subject patterns merged into one expression, built once in init. */
+	private SubjectRewriteEngine subjectRewriteEngine = new SubjectRewriteEngine(subjectregexps);
+
 	public List<String> whiteListEntries = new ArrayList<String>();
 
+	/** The whitelist expressions, compiled once in init. */
+	private WhitelistMatcher whitelistMatcher = new WhitelistMatcher(whiteListEntries);
+
+	/**
+	 * Routing table from the JIRA email addresses (jiraemail, jiraalias and
+	 * route&lt;PROJECTKEY&gt; parameters) to projects, built once in init.
+	 */
+	private RecipientRouter recipientRouter = new RecipientRouter();
+
+	/*
+	 * Sub-handlers, initialized once with the parameters of this handler and
+	 * shared by all messages. Only one of the comment handlers is set,
+	 * depending on stripquotes.
+	 */
+	private FullCommentHandler fullCommentHandler;
+	private NonQuotedCommentHandler nonQuotedCommentHandler;
+	private AdvancedCreateIssueHandler createIssueHandler;
+
+	/** Header checks run before a message is parsed, built once in init. */
+	private MessageFilterChain filterChain = new MessageFilterChain();
+
+	/**
+	 * Whether the comment, summary update and workflow transition of a reply
+	 * are applied together, as one issue update (consolidatedupdates parameter).
+	 */
+	private boolean consolidatedUpdates = false;
+
+	/**
+	 * Whether the workflow transitions are applied in the background, through
+	 * the {@link TransitionQueue} (asynctransitions parameter).
+	 */
+	private boolean asyncTransitions = false;
+
+	/**
+	 * Whether a message delivered twice is processed once, through the
+	 * {@link IdempotencyStore} (idempotency parameter).
+	 */
+	private boolean idempotency = false;
+
+	/**
+	 * Whether failing messages are retried with a backoff, and quarantined
+	 * after {@link #quarantineAttempts} attempts, through the
+	 * {@link QuarantineStore} (quarantine parameter).
+	 */
+	private boolean quarantine = false;
+	private int quarantineAttempts = QuarantineStore.DEFAULT_MAX_ATTEMPTS;
+	/** The configuration of the handler, recorded with the messages it quarantines. */
+	private String quarantineConfiguration;
+
+	/** Checks the workflow actions available to the senders, created on first use. */
+	private IssueWorkflowManager issueWorkflowManager;
+
+	/** Concurrent processing of the messages, if enabled by the pipeline parameter. */
+	private MessagePipeline pipeline;
+
 	private static final String KEY_PROJECT = "project";
 	private static final String KEY_ISSUETYPE = "issuetype";
 	private static final String KEY_QUOTES = "stripquotes";
@@ -123,6 +184,23 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 	private static final String KEY_SUBJECTREGEXP = "subjectregexp";
 	private static final String KEY_SUBJECTREPLACE = "subjectreplace";
 	private static final String KEY_REPORTERUSERNAME = "reporterusername";
+	private static final String KEY_ROUTE = "route";
+	private static final String KEY_PIPELINE = "pipeline";
+	private static final String KEY_PIPELINEQUEUE = "pipelinequeue";
+	private static final String KEY_PARSETHREADS = "parsethreads";
+	private static final String KEY_RESOLVETHREADS = "resolvethreads";
+	private static final String KEY_PERSISTTHREADS = "persistthreads";
+	private static final String KEY_TRANSITIONTHREADS = "transitionthreads";
+	/** Separator of the addresses in a route parameter (commas delimit parameters). */
+	private static final String ROUTE_SEPARATOR = "[;\\s]+";
+	private static final String KEY_DROPAUTOSUBMITTED = "dropautosubmitted";
+	private static final String KEY_DROPUNROUTED = "dropunrouted";
+	private static final String KEY_FILTER = "filter";
+	private static final String KEY_CONSOLIDATEDUPDATES = "consolidatedupdates";
+	private static final String KEY_ASYNCTRANSITIONS = "asynctransitions";
+	private static final String KEY_IDEMPOTENCY = "idempotency";
+	private static final String KEY_QUARANTINE = "quarantine";
+	private static final String KEY_QUARANTINEATTEMPTS = "quarantineattempts";
 
 	public void init(Map params, MessageHandlerErrorCollector monitor) {
 		log.debug("AdvancedCreateOrCommentHandler.init(params: " + params + ")");
@@ -155,6 +233,12 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 			jiraEmailAlias = jiraEmail;
 		}
 
+		recipientRouter = new RecipientRouter();
+		recipientRouter.addJiraAddress(jiraEmail);
+		if (jiraEmailAlias != null && !jiraEmailAlias.equals(jiraEmail)) {
+			recipientRouter.addJiraAddress(jiraEmailAlias);
+		}
+
 		for (Object key : params.keySet()) {
 			if (((String) key).toLowerCase().trim().startsWith(KEY_WHITELIST)) {
 				String whitelistExp = (String) params.get(key);
@@ -202,14 +286,87 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 							+ key);
 				}
 			}
+			if (((String) key).toLowerCase().trim().startsWith(KEY_ROUTE)) {
+				String projectKey = ((String) key).trim()
+						.substring(KEY_ROUTE.length()).toUpperCase();
+				if (projectKey.length() == 0) {
+					log.warn("Malformed key for route, a project key is expected: " + key);
+					continue;
+				}
+				String[] addresses = ((String) params.get(key)).trim().split(ROUTE_SEPARATOR);
+				for (int i = 0; i < addresses.length; i++) {
+					recipientRouter.addRoute(addresses[i], projectKey);
+				}
+			}
+		}
+
+		// Rules apply in the order of their names
+		subjectRewriteEngine = new SubjectRewriteEngine(
+				new TreeMap<String, SubjectRegexpReplace>(subjectregexps));
+		whitelistMatcher = new WhitelistMatcher(whiteListEntries);
+		filterChain = createFilterChain(params);
+
+		if ((stripquotes == null) || FALSE.equalsIgnoreCase(stripquotes)) {
+			fullCommentHandler = new FullCommentHandler();
+			fullCommentHandler.init(params, monitor);
+			nonQuotedCommentHandler = null;
+		} else {
+			nonQuotedCommentHandler = new NonQuotedCommentHandler();
+			nonQuotedCommentHandler.init(params, monitor);
+			fullCommentHandler = null;
 		}
+		createIssueHandler = new AdvancedCreateIssueHandler();
+		createIssueHandler.init(params, monitor);
+
+		if (params.containsKey(KEY_PIPELINE)
+				&& Boolean.valueOf((String) params.get(KEY_PIPELINE)).booleanValue()) {
+			pipeline = MessagePipeline.getPipeline(params,
+					getIntParam(params, KEY_PARSETHREADS, MessagePipeline.DEFAULT_THREADS),
+					getIntParam(params, KEY_RESOLVETHREADS, MessagePipeline.DEFAULT_THREADS),
+					getIntParam(params, KEY_PERSISTTHREADS, MessagePipeline.DEFAULT_THREADS),
+					getIntParam(params, KEY_TRANSITIONTHREADS, MessagePipeline.DEFAULT_THREADS),
+					getIntParam(params, KEY_PIPELINEQUEUE, MessagePipeline.DEFAULT_QUEUE_CAPACITY));
+		} else {
+			pipeline = null;
+		}
+
+		consolidatedUpdates = params.containsKey(KEY_CONSOLIDATEDUPDATES)
+				&& Boolean.valueOf((String) params.get(KEY_CONSOLIDATEDUPDATES)).booleanValue();
+
+		asyncTransitions = params.containsKey(KEY_ASYNCTRANSITIONS)
+				&& Boolean.valueOf((String) params.get(KEY_ASYNCTRANSITIONS)).booleanValue();
+		if (asyncTransitions) {
+			TransitionQueue.getInstance().start(new TransitionQueue.Applier() {
+				public boolean apply(TransitionQueue.Transition transition) {
+					return applyQueuedTransition(transition);
+				}
+			});
+		}
+
+		idempotency = params.containsKey(KEY_IDEMPOTENCY)
+				&& Boolean.valueOf((String) params.get(KEY_IDEMPOTENCY)).booleanValue();
+
+		quarantine = params.containsKey(KEY_QUARANTINE)
+				&& Boolean.valueOf((String) params.get(KEY_QUARANTINE)).booleanValue();
+		quarantineAttempts = getIntParam(params, KEY_QUARANTINEATTEMPTS,
+				QuarantineStore.DEFAULT_MAX_ATTEMPTS);
+		if (quarantine) {
+			// Replays the messages quarantined by the handlers configured alike
+			quarantineConfiguration = QuarantineStore.getConfigurationId(params);
+			QuarantineStore.getInstance().registerReplayHandler(quarantineConfiguration, this);
+		}
+
+		ConstantsCache.getInstance().ensureBuilt();
+		UserEmailIndex.getInstance().loadInBackground();
+		log.debug(ConstantsCache.getInstance());
+		log.debug(UserEmailIndex.getInstance());
+		log.debug(filterChain);
 
 		log.debug("Params: " + defaultProjectKey + " - " + defaultIssueType
 				+ " - " + stripquotes + " - " + jiraEmail + " - "
 				+ jiraEmailAlias);
 	}
 
-	@SuppressWarnings("deprecation")
 	public boolean handleMessage(Message message, MessageHandlerContext context) throws MessagingException {
 		log.debug("AdvancedCreateOrCommentHandler.handleMessage");
 
@@ -217,84 +374,290 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 			return deleteEmail;
 		}
 
-		String subject = message.getSubject();
-		GenericValue issue = ServiceUtils.findIssueInString(subject);
+		// Messages without sender, from senders not whitelisted, etc. are
+		// deleted before any parsing
+		MessageWorkItem work = new MessageWorkItem(message, context);
+		if (!filterChain.accept(work)) {
+			return true;
+		}
 
-		IssueDescriptor issueDescriptor = MessageParser.parse(message,
-				new String[] { jiraEmail, jiraEmailAlias });
+		if (!quarantine || !context.isRealRun()) {
+			return handleOnce(work, true);
+		}
 
-		if (issue == null) {
-			// If we cannot find the issue from the subject of the e-mail
-			// message
-			// try finding the issue using the in-reply-to message id of the
-			// e-mail message
-			Issue associatedIssue = getAssociatedIssue(message);
-			if (associatedIssue != null) {
-				issue = associatedIssue.getGenericValue();
+		// Failing messages are skipped until their next attempt is due,
+		// then quarantined after too many attempts
+		QuarantineStore quarantineStore = QuarantineStore.getInstance();
+		String quarantineKey = QuarantineStore.getKey(message);
+		if (!quarantineStore.isDue(quarantineKey)) {
+			log.debug("Message " + quarantineKey + " failed recently, skipping it");
+			return false;
+		}
+		boolean doDelete;
+		try {
+			doDelete = handleOnce(work, true);
+		} catch (MessagingException e) {
+			if (quarantineStore.failed(quarantineKey, message, e.toString(), quarantineAttempts,
+					quarantineConfiguration)) {
+				return true;
+			}
+			throw e;
+		} catch (RuntimeException e) {
+			if (quarantineStore.failed(quarantineKey, message, e.toString(), quarantineAttempts,
+					quarantineConfiguration)) {
+				return true;
 			}
+			throw e;
+		}
+		if (doDelete) {
+			quarantineStore.succeeded(quarantineKey);
+			return true;
+		}
+		if (pipeline != null && pipeline.isTracked(message)) {
+			// Being processed by the pipeline, not a failure
+			return false;
 		}
+		return quarantineStore.failed(quarantineKey, message,
+				"the message was kept in the mailbox", quarantineAttempts, quarantineConfiguration);
+	}
 
-		// Store the FROM address for later (if there's no FROM, we discard the
-		// message !)
-		Address[] from = message.getFrom();
-		if (from == null || from.length == 0) {
-			// No FROM address !?! Have the message deleted, we simply ignore it
-			// !
-			log.warn("Message has no FROM address in its header ! ignoring message...");
+	/**
+	 * Processes a message replayed from the quarantine (see
+	 * {@link QuarantineStore#replay}). The message is processed synchronously,
+	 * bypassing the pipeline, so that its outcome is known on return.
+	 * 
+	 * @return whether the message was processed, or dropped by the filter chain
+	 */
+	boolean replayMessage(Message message, MessageHandlerContext context) throws MessagingException {
+		MessageWorkItem work = new MessageWorkItem(message, context);
+		if (!filterChain.accept(work)) {
 			return true;
 		}
+		return handleOnce(work, false);
+	}
+
+	/**
+	 * Processes a message accepted by the filter chain, unless it was
+	 * processed already (see {@link IdempotencyStore}). The claim of a
+	 * message handed over to the pipeline is settled by the pipeline, so
+	 * that its other copies are kept until it is persisted.
+	 * 
+	 * @param pipelined
+	 *            whether the message may be handed over to the pipeline
+	 * @return whether the message must be deleted
+	 */
+	private boolean handleOnce(MessageWorkItem work, boolean pipelined) throws MessagingException {
+		Message message = work.getMessage();
+		MessageHandlerContext context = work.getContext();
+		Long digest = null;
+		if (idempotency && context.isRealRun()) {
+			digest = IdempotencyStore.getDigest(message);
+			if (digest != null) {
+				switch (IdempotencyStore.getInstance().claim(digest)) {
+				case DUPLICATE:
+					log.info("Message " + getMessageId(message) + " already processed, deleting it");
+					return true;
+				case IN_PROGRESS:
+					// Kept until the other copy is processed or released
+					log.info("Another copy of message " + getMessageId(message) + " is being processed");
+					return false;
+				default:
+					break;
+				}
+			}
+		}
+
+		if (digest != null) {
+			work.setClaim(IdempotencyStore.getInstance(), digest);
+		}
+		boolean doDelete = false;
+		try {
+			doDelete = processMessage(work, pipelined);
+			return doDelete;
+		} finally {
+			// Nothing to do if the claim was handed over to the pipeline
+			work.settleClaim(doDelete);
+		}
+	}
+
+	private static String getMessageId(Message message) throws MessagingException {
+		String[] messageIds = message.getHeader("Message-ID");
+		return (messageIds != null && messageIds.length > 0 ? messageIds[0] : null);
+	}
+
+	/**
+	 * Processes a message accepted by the filter chain.
+	 * 
+	 * @param pipelined
+	 *            whether the message may be handed over to the pipeline
+	 * @return whether the message must be deleted
+	 */
+	private boolean processMessage(MessageWorkItem work, boolean pipelined) throws MessagingException {
+		Message message = work.getMessage();
+		if (pipelined && pipeline != null && work.getContext().isRealRun()) {
+			// The message is processed asynchronously from an in-memory copy,
+			// and kept in the mailbox until it is persisted
+			switch (pipeline.offer(this, work)) {
+			case PROCESSED:
+				return true;
+			case PENDING:
+				return false;
+			case FAILED:
+				log.warn("Message " + getMessageId(message)
+						+ " could not be processed, it will be processed again");
+				return false;
+			default:
+				break;
+			}
+		}
+
+		parseStage(work);
+		if (!work.isCompleted()) {
+			resolveStage(work);
+		}
+		if (!work.isCompleted()) {
+			persistStage(work);
+		}
+		if (!work.isCompleted()) {
+			transitionStage(work);
+		}
+		return work.getResult();
+	}
+
+	/**
+	 * Parse stage: finds the issue referenced in the subject and parses the
+	 * directives of the message.
+	 * 
+	 * @param work
+	 *            the message being processed
+	 */
+	@SuppressWarnings("deprecation")
+	void parseStage(MessageWorkItem work) throws MessagingException {
+		Message message = work.getMessage();
+		String subject = message.getSubject();
+		work.setSubject(subject);
+
+		ProcessingContext processingContext = new ProcessingContext(
+				MessageParser.parse(message, recipientRouter));
+		work.setProcessingContext(processingContext);
+
+		// Only keys of existing projects are looked up
+		for (String issueKey : IssueKeyScanner.getInstance().findIssueKeys(subject)) {
+			MutableIssue issue = processingContext.getIssue(issueKey);
+			if (issue != null) {
+				work.setIssue(issue.getGenericValue());
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Resolve stage: finds the issue the message replies to, if the subject
+	 * did not reference one, unless the lookup is deferred (see
+	 * {@link #resolveThread}), and identifies the sender, unless the
+	 * whitelist filter did already. Messages without sender, or whose sender
+	 * is neither a JIRA user nor whitelisted, were rejected by the filter
+	 * chain.
+	 * 
+	 * @param work
+	 *            the message being processed
+	 */
+	void resolveStage(MessageWorkItem work) throws MessagingException {
+		Message message = work.getMessage();
+
+		if (work.getIssue() == null && !work.isThreadLookupDeferred()) {
+			resolveThread(work);
+		}
+
+		if (work.isSenderResolved()) {
+			// Looked up by the whitelist filter
+			return;
+		}
+
+		// The filter chain ensured there is a FROM address
+		Address[] from = message.getFrom();
 
 		// Try and resolve the sender of the message as a valid JIRA user...
 		// We do not use the "default reporter" for this purpose, we need to
 		// identify
 		// the actual sender of the message.
-		User sender = null;
-
 		String fromEmail = extractEmailAddressOnly(from[0].toString());
+		work.setFromEmail(fromEmail);
 		
-		sender = UserUtils.getUserByEmail(fromEmail);
+		User sender = UserEmailIndex.getInstance().getUserByEmail(fromEmail);
 		if (sender != null) {
 			log.debug("Found user " + sender.getName() + " for email "
 					+ fromEmail);
 		} else {
 			log.info("Could not find a user for email '" + fromEmail + "'");
 		}
+		work.setSender(sender);
+	}
 
-		// /////////
-		// JMH-17 : If any whitelist expressions are defined and the sender is
-		// unknown to JIRA,
-		// we must check whether the sender email matches any of the white
-		// listed domains
-		log.debug("Whitelisted domains count: " + whiteListEntries.size());
-		log.debug("Sender is null ? " + (sender == null));
-
-		if (sender == null && whiteListEntries.size() > 0) {
-
-			log.debug("Trying to find a match for " + fromEmail);
-			/**
-			 * If the from address does not match any of the whitelisted
-			 * domains...
-			 */
-			String matchingWhitelist = (String) CollectionUtils.find(
-					whiteListEntries, new RegexpWhitelistMatchPredicate(
-							fromEmail));
-			if (matchingWhitelist == null) {
-				// .. then we delete the message and interrupt the processing
-				log.warn("Sender "
-						+ fromEmail
-						+ " did not match any of the whitelist regular expressions");
-
-				// Not in the whitelist : Have the message deleted, we simply
-				// ignore it !
-				return true;
-			} else {
-				log.debug("Sender " + fromEmail
-						+ " matched whitelist expression " + matchingWhitelist
-						+ ", processing message...");
+	/**
+	 * Finds the issue the message replies to, from its In-Reply-To and
+	 * References headers, as its subject does not reference one.
+	 * 
+	 * @param work
+	 *            the message being processed
+	 */
+	@SuppressWarnings("deprecation")
+	void resolveThread(MessageWorkItem work) throws MessagingException {
+		Issue associatedIssue = getThreadIssue(work.getMessage());
+		if (associatedIssue != null) {
+			work.setIssue(associatedIssue.getGenericValue());
+		}
+	}
+
+	/**
+	 * Finds the issue of the thread of a reply: first in memory, from the
+	 * In-Reply-To and References headers (see {@link MessageThreadIndex}),
+	 * then in the mail threads of JIRA.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return the issue, or <code>null</code> if the message replies to none
+	 */
+	private Issue getThreadIssue(Message message) throws MessagingException {
+		MessageThreadIndex threadIndex = MessageThreadIndex.getInstance();
+		for (Long issueId : threadIndex.getIssueIds(message)) {
+			Issue issue = ComponentManager.getInstance().getIssueManager()
+					.getIssueObject(issueId);
+			if (issue != null) {
+				return issue;
 			}
+			// Deleted since
+		}
+		Issue issue = getAssociatedIssue(message);
+		if (issue != null) {
+			threadIndex.putParents(message, issue.getId());
 		}
-		// JMH-17
-		// ////////
+		return issue;
+	}
+
+	/**
+	 * Records the issue of a message in JIRA, and in memory for the replies
+	 * to come.
+	 */
+	@Override
+	protected void recordMessageId(String type, Message message, Long issueId,
+			MessageHandlerContext context) throws MessagingException {
+		super.recordMessageId(type, message, issueId, context);
+		MessageThreadIndex.getInstance().putRecorded(message, issueId, context);
+	}
+
+	/**
+	 * Persist stage: adds the message as a comment to the issue it references,
+	 * or creates a new issue from it.
+	 * 
+	 * @param work
+	 *            the message being processed
+	 */
+	@SuppressWarnings("deprecation")
+	void persistStage(MessageWorkItem work) throws MessagingException {
+		Message message = work.getMessage();
+		MessageHandlerContext context = work.getContext();
+		GenericValue issue = work.getIssue();
 
 		// If we have found an associated issue, we're processing a comment made
 		// to it
@@ -305,61 +668,335 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 			// as a valid user, we dump the sender's email address directly in
 			// the comment
 			// so it does not get lost
-			boolean registerSenderInCommentText = (sender == null);
-
-			// append message to issue summary based on defined regex
-			appendRegexToSummary(message, issue, sender);
-
-			// add the message as a comment to the issue...
-			if ((stripquotes == null) || FALSE.equalsIgnoreCase(stripquotes)) {
-				FullCommentHandler fc = new FullCommentHandler();
-				//fc.setErrorHandler(this.getErrorHandler());
-				fc.init(params, context.getMonitor());
-				fc.setRegisterSenderInCommentText(registerSenderInCommentText);
-				doDelete = fc.handleMessage(message, context); // get message with quotes
-			} else {
-				NonQuotedCommentHandler nq = new NonQuotedCommentHandler();
-				//nq.setErrorHandler(this.getErrorHandler());
-				nq.init(params, context.getMonitor());
-				nq.setRegisterSenderInCommentText(registerSenderInCommentText);
-				doDelete = nq.handleMessage(message, context); // get message without
-				// quotes
-			}
-
-			// ///////
-			// JMH-14
-			// Progress the issue in the workflow if required
-			if (issueDescriptor.getWorkflowTarget() != null
-					&& (!"".equals(issueDescriptor.getWorkflowTarget()))) {
+			boolean registerSenderInCommentText = (work.getSender() == null);
+
+			// Replies to the same issue must not race
+			Lock issueLock = IssueLocks.getLock(work.getIssueKey());
+			issueLock.lock();
+			try {
+				if (consolidatedUpdates && persistConsolidated(work)) {
+					// Commented, and transitioned if required
+					work.complete(true);
+					return;
+				}
+
+				// append message to issue summary based on defined regex
+				appendRegexToSummary(message, issue, work.getSender(),
+						work.getProcessingContext());
+
+				// add the message as a comment to the issue...
+				if (fullCommentHandler != null) {
+					doDelete = fullCommentHandler.handleMessage(message, context,
+							registerSenderInCommentText); // get message with quotes
+				} else {
+					doDelete = nonQuotedCommentHandler.handleMessage(message, context,
+							registerSenderInCommentText); // get message without
+					// quotes
+				}
+			} finally {
+				issueLock.unlock();
+			}
+			work.setResult(doDelete);
+		} else { // no issue found, so create new issue in default project
+			work.complete(createIssueHandler.handleMessage(message, context,
+					work.getProcessingContext()));
+		}
+	}
+
+	/**
+	 * Applies the comment, the summary update and the workflow transition
+	 * required by a reply as a single issue update (one reindex, one event),
+	 * through {@link IssueService#transition} or {@link IssueService#update}.
+	 * Only done for a known sender, when there is something to combine with
+	 * the comment, and, for a transition changing the summary, when the
+	 * transition screen has the summary field; otherwise, or if the update
+	 * is not valid, nothing is done and the message is processed the usual
+	 * way. An update which was valid but failed is logged, and the message
+	 * deemed processed.
+	 * 
+	 * @param work
+	 *            the message being processed, which comments an issue
+	 * @return whether the message was processed
+	 * @throws MessagingException
+	 */
+	@SuppressWarnings("deprecation")
+	private boolean persistConsolidated(MessageWorkItem work)
+			throws MessagingException {
+		User user = work.getSender();
+		MessageHandlerContext context = work.getContext();
+		if (user == null || !context.isRealRun()) {
+			return false;
+		}
+		Message message = work.getMessage();
+		ProcessingContext processingContext = work.getProcessingContext();
+		IssueDescriptor issueDescriptor = processingContext.getIssueDescriptor();
+		MutableIssue issue = processingContext.getIssue(work.getIssueKey());
+
+		String workflowTarget = issueDescriptor.getWorkflowTarget();
+		boolean transition = (workflowTarget != null && !"".equals(workflowTarget));
+		String summary = getAppendedSummary(issue.getSummary(),
+				subjectRewriteEngine.rewrite(work.getSubject()), work.getSubject());
+		if (!transition && summary == null) {
+			// A plain comment, nothing to combine
+			return false;
+		}
+		ActionDescriptor action = null;
+		if (transition) {
+			action = findWorkflowAction(issue, user, workflowTarget);
+			if (action == null) {
+				return false;
+			}
+			if (summary != null) {
+				FieldScreen screen = new WorkflowActionsBean().getFieldScreenForView(action);
+				if (screen == null || !screen.containsField(IssueFieldConstants.SUMMARY)) {
+					// The transition would not set the summary
+					return false;
+				}
+			}
+		}
+
+		IssueInputParameters issueInputParameters = new IssueInputParametersImpl();
+		String body = (fullCommentHandler != null ? fullCommentHandler
+				.getEmailBody(message) : nonQuotedCommentHandler.getEmailBody(message));
+		if (TextUtils.stringSet(body)) {
+			issueInputParameters.setComment(body);
+		}
+		if (summary != null) {
+			issueInputParameters.setSummary(summary);
+		}
+
+		IssueService issueService = ComponentManager.getInstance()
+				.getIssueService();
+		IssueResult result;
+		if (transition) {
+			String resolutionId = getDefaultResolutionId(issueDescriptor
+					.getResolution());
+			if (resolutionId != null) {
+				issueInputParameters.setResolutionId(resolutionId);
+			}
+			TransitionValidationResult validationResult = issueService
+					.validateTransition(user, issue.getId(), action.getId(),
+							issueInputParameters);
+			if (!validationResult.isValid()) {
+				logConsolidationErrors(issue, validationResult.getErrorCollection());
+				return false;
+			}
+			result = issueService.transition(user, validationResult);
+		} else {
+			UpdateValidationResult validationResult = issueService
+					.validateUpdate(user, issue.getId(), issueInputParameters);
+			if (!validationResult.isValid()) {
+				logConsolidationErrors(issue, validationResult.getErrorCollection());
+				return false;
+			}
+			result = issueService.update(user, validationResult);
+		}
+		processingContext.invalidateIssue(work.getIssueKey());
+		if (!result.isValid()) {
+			// Part of the update may have been applied: the message is not
+			// processed again, step by step or on the next poll, which would
+			// add the comment twice
+			log.error("Could not update issue " + issue.getKey()
+					+ " from message, the message is deleted: "
+					+ result.getErrorCollection());
+			for (String errMsg : result.getErrorCollection().getErrorMessages()) {
+				log.error("Update error : " + errMsg);
+			}
+			return true;
+		}
+		log.info("Issue " + issue.getKey() + " updated from message"
+				+ (transition ? " and transitioned to '" + workflowTarget + "'" : ""));
+
+		createAttachmentsForMessage(message, result.getIssue(), context);
+		recordMessageId(MailThreadManager.ISSUE_COMMENTED_FROM_EMAIL, message,
+				issue.getId(), context);
+		return true;
+	}
+
+	private void logConsolidationErrors(Issue issue, ErrorCollection errors) {
+		log.warn("Could not update issue " + issue.getKey()
+				+ " at once, updating it step by step");
+		for (String errMsg : errors.getErrorMessages()) {
+			log.warn("Validation error : " + errMsg);
+		}
+		for (Map.Entry<String, String> error : errors.getErrors().entrySet()) {
+			log.warn("Validation error on field " + error.getKey() + " : "
+					+ error.getValue());
+		}
+	}
+
+	/**
+	 * Transition stage: progresses the commented issue in the workflow, if the
+	 * message requires it.
+	 * 
+	 * @param work
+	 *            the message being processed
+	 */
+	@SuppressWarnings("deprecation")
+	void transitionStage(MessageWorkItem work) {
+		IssueDescriptor issueDescriptor = work.getIssueDescriptor();
+		GenericValue issue = work.getIssue();
+
+		// ///////
+		// JMH-14
+		// Progress the issue in the workflow if required
+		if (issueDescriptor.getWorkflowTarget() != null
+				&& (!"".equals(issueDescriptor.getWorkflowTarget()))) {
+			if (asyncTransitions && work.getContext().isRealRun()) {
+				if (work.getSender() == null) {
+					log.error("Could not queue workflow transition '"
+							+ issueDescriptor.getWorkflowTarget()
+							+ "' on issue " + issue.get("key")
+							+ ", the sender is not a JIRA user");
+					return;
+				}
+				// Applied in the background, the message can be deleted now
 				try {
-					MutableIssue mutableIssue = ComponentManager.getInstance()
-							.getIssueManager()
-							.getIssueObject(issue.getString("key"));
-					applyWorkflowTransition(mutableIssue, sender,
+					TransitionQueue.getInstance().enqueue(work.getIssueKey(),
+							work.getSender().getName(),
 							issueDescriptor.getWorkflowTarget(),
 							issueDescriptor.getResolution());
-				} catch (Throwable t) {
-					log.error("Could not trigger workflow transition '"
+					return;
+				} catch (IOException e) {
+					log.warn("Could not queue workflow transition '"
+							+ issueDescriptor.getWorkflowTarget()
+							+ "' on issue " + issue.get("key")
+							+ ", applying it now", e);
+				} catch (IllegalStateException e) {
+					log.warn("Could not queue workflow transition '"
 							+ issueDescriptor.getWorkflowTarget()
-							+ "' on issue " + issue.get("key"));
+							+ "' on issue " + issue.get("key")
+							+ ", applying it now", e);
 				}
+			}
+			Lock issueLock = IssueLocks.getLock(work.getIssueKey());
+			issueLock.lock();
+			try {
+				// Messages persisted since this one was parsed may have
+				// changed the issue: reloaded under the lock
+				ProcessingContext processingContext = work.getProcessingContext();
+				processingContext.invalidateIssue(work.getIssueKey());
+				MutableIssue mutableIssue = processingContext.getIssue(work
+						.getIssueKey());
+				applyWorkflowTransition(mutableIssue, work.getSender(),
+						issueDescriptor.getWorkflowTarget(),
+						issueDescriptor.getResolution());
+			} catch (Throwable t) {
+				log.error("Could not trigger workflow transition '"
+						+ issueDescriptor.getWorkflowTarget()
+						+ "' on issue " + issue.get("key"));
+			} finally {
+				issueLock.unlock();
+			}
+
+		}
+		// /////////////
+	}
+
+	/**
+	 * Builds the filters run on each message before it is parsed: missing
+	 * sender, whitelist (JMH-17), then the optional automatic reply, recipient
+	 * and custom (filter&lt;N&gt;=className, in the order of N) filters.
+	 * 
+	 * @param params
+	 *            the handler parameters
+	 * @return the filter chain
+	 */
+	private MessageFilterChain createFilterChain(Map params) {
+		MessageFilterChain chain = new MessageFilterChain();
+		chain.add("from", new MessageFilterChain.MissingFromFilter());
+		if (whiteListEntries.size() > 0) {
+			chain.add(KEY_WHITELIST, new MessageFilterChain.WhitelistFilter(whitelistMatcher));
+		}
+		if (params.containsKey(KEY_DROPAUTOSUBMITTED)
+				&& Boolean.valueOf((String) params.get(KEY_DROPAUTOSUBMITTED)).booleanValue()) {
+			chain.add("autosubmitted", new MessageFilterChain.AutoSubmittedFilter());
+		}
+		if (params.containsKey(KEY_DROPUNROUTED)
+				&& Boolean.valueOf((String) params.get(KEY_DROPUNROUTED)).booleanValue()) {
+			chain.add("recipients", new MessageFilterChain.RecipientFilter(recipientRouter));
+		}
 
+		Map<String, String> customFilters = new TreeMap<String, String>();
+		for (Object key : params.keySet()) {
+			if (((String) key).toLowerCase().trim().startsWith(KEY_FILTER)) {
+				customFilters.put((String) key, ((String) params.get(key)).trim());
+			}
+		}
+		for (String className : customFilters.values()) {
+			try {
+				MessageFilter filter = (MessageFilter) AdvancedCreateOrCommentHandler.class
+						.getClassLoader().loadClass(className).newInstance();
+				filter.init(params);
+				chain.add(className, filter);
+			} catch (Exception e) {
+				log.error("Could not load message filter " + className, e);
 			}
-			// /////////////
+		}
+		return chain;
+	}
 
-			return doDelete;
-		} else { // no issue found, so create new issue in default project
-			AdvancedCreateIssueHandler createIssueHandler = new AdvancedCreateIssueHandler();
-			createIssueHandler.setIssueDescriptor(issueDescriptor);
-			//createIssueHandler.setErrorHandler(this.getErrorHandler());
-			createIssueHandler.init(params, context.getMonitor());
-			return createIssueHandler.handleMessage(message, context);
+	/**
+	 * @return the filters run on each message before it is parsed, with their
+	 *         rejection counts
+	 */
+	public MessageFilterChain getFilterChain() {
+		return filterChain;
+	}
+
+	/**
+	 * Applies a transition taken from the {@link TransitionQueue}.
+	 * 
+	 * @param transition
+	 *            the transition
+	 * @return whether the issue was progressed
+	 */
+	private boolean applyQueuedTransition(TransitionQueue.Transition transition) {
+		MutableIssue issue = ComponentManager.getInstance().getIssueManager()
+				.getIssueObject(transition.getIssueKey());
+		User user = UserUtils.getUser(transition.getUsername());
+		if (issue == null || user == null) {
+			log.error("Dropping workflow transition " + transition
+					+ ", the issue or the user no longer exists");
+			// Retrying will not help
+			return true;
+		}
+		return applyWorkflowTransition(issue, user,
+				transition.getActionName(), transition.getResolution());
+	}
+
+	/**
+	 * Reads a strictly positive integer parameter.
+	 * 
+	 * @param params
+	 *            the handler parameters
+	 * @param key
+	 *            the parameter name
+	 * @param defaultValue
+	 *            the value used if the parameter is missing or invalid
+	 * @return the value of the parameter
+	 */
+	private int getIntParam(Map params, String key, int defaultValue) {
+		if (!params.containsKey(key)) {
+			return defaultValue;
+		}
+		try {
+			int value = Integer.parseInt(((String) params.get(key)).trim());
+			if (value > 0) {
+				return value;
+			}
+		} catch (NumberFormatException e) {
+			// Logged below
 		}
+		log.warn("Invalid value '" + params.get(key) + "' for parameter " + key
+				+ ", using " + defaultValue);
+		return defaultValue;
 	}
 
 	/**
 	 * Looks in subject to find patterns defined as subjectregexp parameter and
-	 * appends them to issue summary according to subjectreplace parameter.
+	 * appends them to issue summary according to subjectreplace parameter. All
+	 * the outputs are appended at once, so the issue is updated once at most.
 	 * 
 	 * @param message
 	 *            Message
@@ -367,60 +1004,67 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 	 *            Commented issue
 	 * @param user
 	 *            User doing the edit (must have proper permissions)
+	 * @param processingContext
+	 *            Entities already resolved for the message
 	 */
 
 	private void appendRegexToSummary(Message message, GenericValue issue,
-			User user) {
+			User user, ProcessingContext processingContext) {
 		String subject;
-		IssueService issueService = ComponentManager.getInstance()
-				.getIssueService();
+		String issueKey = issue.getString("key");
 		try {
+			subject = message.getSubject();
+			List<String> outputs = subjectRewriteEngine.rewrite(subject);
+			if (outputs.isEmpty()) {
+				// Nothing to append, no need to load anything
+				return;
+			}
 			if (user == null) {
-				user = UserUtils.getUser(reporterUsername);
+				user = processingContext.getUserByName(reporterUsername);
 				if (user == null) {
 					log.error("Couldn't get JIRA user '" + reporterUsername + "'");
 					return;
 				}
 			}
-			subject = message.getSubject();
-			for (String key : subjectregexps.keySet()) {
-				Matcher matcher = subjectregexps.get(key).getMatcher(subject);
-				while (matcher.find()) {
-					String toAppend = subjectregexps.get(key)
-							.getOutput(matcher);
-					IssueService.IssueResult issueResult = issueService.getIssue(
-							user, issue.getString("key"));
-					MutableIssue mutableIssue = issueResult.getIssue();
-					if (mutableIssue.getSummary().contains(toAppend)) {
-						log.info("Subject already contains the output regex. Not appending! Subject: |"+subject+"| and toAppend=|"+toAppend+"|");
-					} else {
-						log.info("Appending: " + toAppend);
-						IssueInputParameters issueInputParameters = new IssueInputParametersImpl();
-						issueInputParameters.setSummary(mutableIssue
-								.getSummary() + " " + toAppend);
-						UpdateValidationResult updateValidationResult = issueService
-								.validateUpdate(user, mutableIssue.getId(),
-										issueInputParameters);
-						if (updateValidationResult.isValid()) {
-							IssueResult updateResult = issueService.update(
-									user, updateValidationResult);
-							if (!updateResult.isValid()) {
-								log.error("Could not append '" + toAppend
-										+ "' to issue " + mutableIssue.getKey());
-							} else {
-								log.info("Message '" + toAppend
-										+ "' appended to summary of issue "
-										+ mutableIssue.getKey());
-							}
-						} else {
-							log.error("Could not append '" + toAppend
-									+ "' to issue " + mutableIssue.getKey());
-							for (String errMsg : updateValidationResult
-									.getErrorCollection().getErrorMessages()) {
-								log.error("Validation error : " + errMsg);
-							}
-						}
-					}
+			// Loaded on behalf of the user, who must be allowed to browse it
+			IssueService issueService = ComponentManager.getInstance()
+					.getIssueService();
+			IssueResult issueResult = issueService.getIssue(user, issueKey);
+			if (!issueResult.isValid()) {
+				log.error("Could not update the summary of issue " + issueKey
+						+ ", user '" + user.getName() + "' cannot browse it");
+				return;
+			}
+			MutableIssue mutableIssue = issueResult.getIssue();
+			String summary = getAppendedSummary(mutableIssue.getSummary(),
+					outputs, subject);
+			if (summary == null) {
+				return;
+			}
+
+			IssueInputParameters issueInputParameters = new IssueInputParametersImpl();
+			issueInputParameters.setSummary(summary);
+			UpdateValidationResult updateValidationResult = issueService
+					.validateUpdate(user, mutableIssue.getId(),
+							issueInputParameters);
+			if (updateValidationResult.isValid()) {
+				IssueResult updateResult = issueService.update(user,
+						updateValidationResult);
+				// The summary changed, the next steps must see it
+				processingContext.invalidateIssue(issueKey);
+				if (!updateResult.isValid()) {
+					log.error("Could not update the summary of issue "
+							+ mutableIssue.getKey() + " to '" + summary + "'");
+				} else {
+					log.info("Summary of issue " + mutableIssue.getKey()
+							+ " updated to '" + summary + "'");
+				}
+			} else {
+				log.error("Could not update the summary of issue "
+						+ mutableIssue.getKey() + " to '" + summary + "'");
+				for (String errMsg : updateValidationResult
+						.getErrorCollection().getErrorMessages()) {
+					log.error("Validation error : " + errMsg);
 				}
 			}
 		} catch (MessagingException e) {
@@ -428,6 +1072,33 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 		}
 	}
 
+	/**
+	 * Appends the outputs of the subject patterns to a summary, skipping
+	 * those it already contains.
+	 * 
+	 * @param summary
+	 *            The current summary of the issue
+	 * @param outputs
+	 *            The outputs of the subject patterns
+	 * @param subject
+	 *            The subject of the message, for logging
+	 * @return The new summary, or <code>null</code> if there is nothing to
+	 *         append
+	 */
+	private String getAppendedSummary(String summary, List<String> outputs,
+			String subject) {
+		StringBuilder newSummary = new StringBuilder(summary);
+		for (String toAppend : outputs) {
+			if (newSummary.indexOf(toAppend) >= 0) {
+				log.info("Subject already contains the output regex. Not appending! Subject: |"+subject+"| and toAppend=|"+toAppend+"|");
+			} else {
+				log.info("Appending: " + toAppend);
+				newSummary.append(' ').append(toAppend);
+			}
+		}
+		return (newSummary.length() > summary.length() ? newSummary.toString() : null);
+	}
+
 	/**
 	 * Given an email address of the form "Arthur Dent <arthur.Dent@earth.com>",
 	 * this function returns "arthur.dent@earth.com".
@@ -483,27 +1154,96 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 	}
 
 	/**
-	 * Return a IssueUtilsBean which is a utility class from Atlassian to
-	 * determine available workflow actions for a given user
+	 * Return the IssueWorkflowManager, which tells whether a workflow action
+	 * is available to the logged in user
+	 * 
+	 * @return The IssueWorkflowManager
+	 */
+	private IssueWorkflowManager getIssueWorkflowManager() {
+		if (issueWorkflowManager == null) {
+			final ComponentManager cm = ComponentManager.getInstance();
+			issueWorkflowManager = new IssueWorkflowManagerImpl(
+					cm.getIssueManager(), cm.getWorkflowManager(),
+					cm.getJiraAuthenticationContext());
+		}
+		return issueWorkflowManager;
+	}
+
+	/**
+	 * Finds an action available to a user on an issue, by name. The action
+	 * ids are cached per workflow and status, see {@link WorkflowActionCache}.
+	 * 
+	 * @param issue
+	 *            the issue
+	 * @param user
+	 *            the user performing the action
+	 * @param workflowTargetName
+	 *            the name of the action, case insensitive
+	 * @return the action, or <code>null</code> if none is available
+	 */
+	@SuppressWarnings("deprecation")
+	private ActionDescriptor findWorkflowAction(Issue issue, User user,
+			String workflowTargetName) {
+		JiraWorkflow workflow = ManagerFactory.getWorkflowManager()
+				.getWorkflow(issue);
+		List<Integer> actionIds = WorkflowActionCache.getInstance()
+				.getActionIds(workflow, issue.getStatus(), workflowTargetName);
+		if (actionIds.isEmpty()) {
+			log.debug("No action '" + workflowTargetName + "' in workflow ["
+					+ workflow.getName() + "] from the status of issue ["
+					+ issue.getKey() + "]");
+			return null;
+		}
+		// The actions available are those of the logged in user; the
+		// threads are shared, the previous user is restored
+		JiraAuthenticationContext jac = ComponentManager.getInstance()
+				.getJiraAuthenticationContext();
+		User previousUser = jac.getLoggedInUser();
+		Integer validActionId = null;
+		jac.setLoggedInUser(user);
+		try {
+			// Actions having the same name may have different conditions
+			for (Integer actionId : actionIds) {
+				if (getIssueWorkflowManager().isValidAction(issue,
+						actionId.intValue())) {
+					validActionId = actionId;
+					break;
+				}
+			}
+		} finally {
+			jac.setLoggedInUser(previousUser);
+		}
+		if (validActionId == null) {
+			log.debug("Action '" + workflowTargetName
+					+ "' is not available to " + user.getName()
+					+ " on issue [" + issue.getKey() + "]");
+			return null;
+		}
+		log.debug("Requested workflow step is valid for issue ["
+				+ issue.getKey() + "] state: [" + validActionId + ":"
+				+ workflowTargetName + "]");
+		return workflow.getDescriptor().getAction(validActionId.intValue());
+	}
+
+	/**
+	 * Returns the resolution set by a transition: when the message gives no
+	 * resolution, "Fixed".
 	 * 
-	 * @param u
-	 *            The given user
-	 * @return An IssueUtilsBean instance
-	 */
-	private IssueUtilsBean getIssueUtilsBean(User u) {
-		final ComponentManager cm = ComponentManager.getInstance();
-		final IssueManager im = cm.getIssueManager();
-		final WorkflowManager wfm = cm.getWorkflowManager();
-		// final PluginAccessor pa = cm.getPluginAccessor();
-		final JiraAuthenticationContext jac = cm.getJiraAuthenticationContext();
-		final IssueWorkflowManager iwfm = new IssueWorkflowManagerImpl(im, wfm, jac);
-		//jac.setUser(u);
-		jac.setLoggedInUser(u);
-
-		//IssueUtilsBean iub = new IssueUtilsBean(im, wfm, jac);
-		IssueUtilsBean iub = new IssueUtilsBean(wfm, jac, iwfm);
-
-		return iub;
+	 * @param resolutionValue
+	 *            the resolution given in the message
+	 * @return the id of the resolution, or <code>null</code>
+	 */
+	private String getDefaultResolutionId(String resolutionValue) {
+		if (resolutionValue == null || "".equals(resolutionValue.trim())) {
+			resolutionValue = "Fixed";
+			String resolutionId = ConstantsCache.getInstance()
+					.getResolutionId(resolutionValue);
+			if (resolutionId != null) {
+				log.debug("Matched resolution : " + resolutionValue);
+			}
+			return resolutionId;
+		}
+		return null;
 	}
 
 	/**
@@ -517,9 +1257,10 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 	 * @param user
 	 * @param workflowTargetName
 	 * @param resolutionValue
+	 * @return whether the issue was progressed
 	 */
 	@SuppressWarnings("unchecked")
-	public void applyWorkflowTransition(MutableIssue issueToSetStatusOn,
+	public boolean applyWorkflowTransition(MutableIssue issueToSetStatusOn,
 			User user, String workflowTargetName, String resolutionValue) {
 		log.debug("Issue: " + issueToSetStatusOn.getGenericValue().toString());
 		WorkflowManager mgr = ManagerFactory.getWorkflowManager();
@@ -534,29 +1275,12 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 				+ (issueToSetStatusOn.getIssueTypeObject() != null ? issueToSetStatusOn
 						.getIssueTypeObject().getName() : "NULL !!!") + "'");
 
-		IssueUtilsBean issueUtilsBean = getIssueUtilsBean(user);
-		ActionDescriptor targetAction = null;
-		Map<Integer, ActionDescriptor> availableActions = issueUtilsBean
-				.loadAvailableActions(issueToSetStatusOn);
-		for (Iterator<Integer> iterator = availableActions.keySet().iterator(); iterator
-				.hasNext();) {
-			Integer aKey = iterator.next();
-			ActionDescriptor aDescriptor = availableActions.get(aKey);
-			log.debug("Checking available action [" + aDescriptor.getId() + ":"
-					+ aDescriptor.getName() + "]");
-			if (aDescriptor.getName().equalsIgnoreCase(workflowTargetName)) {
-				log.debug("Requested workflow step is valid for issue ["
-						+ issueToSetStatusOn.getKey() + "] state: ["
-						+ aDescriptor.getId() + ":" + aDescriptor.getName()
-						+ "]");
-				targetAction = aDescriptor;
-				break;
-			}
-		}
+		ActionDescriptor targetAction = findWorkflowAction(issueToSetStatusOn,
+				user, workflowTargetName);
 
 		if (targetAction == null) {
 			log.error("Workflow Transition had a problem with the given workflow step, it was not in the list of available next steps for the given issues current state");
-			return;
+			return false;
 		}
 
 		Map<String, Object> workflowTransitionParams = new HashMap<String, Object>();
@@ -566,37 +1290,47 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 		workflowTransitionUtil.setUsername(user.getName());
 
 		// Force the issue type id (the workflow engine complains it is missing
-		// otherwise )
-		Field issueTypeField = ManagerFactory.getFieldManager().getField(
-				IssueFieldConstants.ISSUE_TYPE);
-		workflowTransitionParams.put(issueTypeField.getId(), issueToSetStatusOn
-				.getIssueTypeObject().getId());
-
-		Field resolutionField = ManagerFactory.getFieldManager().getField(
-				IssueFieldConstants.RESOLUTION);
-		if (resolutionField != null) {
-			String resolutionFieldId = resolutionField.getId();
-			if (resolutionValue == null || "".equals(resolutionValue.trim())) {
-				resolutionValue = "Fixed";
-				ConstantsManager cmr = ComponentManager.getInstance()
-						.getConstantsManager();
-				Collection<Resolution> c = cmr.getResolutionObjects();
-				for (Resolution resolution : c) {
-
-					if (resolution.getNameTranslation().equalsIgnoreCase(
-							resolutionValue)) {
-						log.debug("Matched resolution : "
-								+ resolution.getNameTranslation());
-						workflowTransitionParams.put(resolutionFieldId,
-								resolution.getId());
-						break;
-					}
-				}
-			}
+		// otherwise ). The ids of the system fields are their constants.
+		workflowTransitionParams.put(IssueFieldConstants.ISSUE_TYPE,
+				issueToSetStatusOn.getIssueTypeObject().getId());
+
+		String resolutionId = getDefaultResolutionId(resolutionValue);
+		if (resolutionId != null) {
+			workflowTransitionParams.put(IssueFieldConstants.RESOLUTION,
+					resolutionId);
 		}
 
 		workflowTransitionUtil.setParams(workflowTransitionParams);
 
+		// Conditions and post-functions may read the logged in user; the
+		// threads are shared, the previous user is restored
+		JiraAuthenticationContext jac = ComponentManager.getInstance()
+				.getJiraAuthenticationContext();
+		User previousUser = jac.getLoggedInUser();
+		jac.setLoggedInUser(user);
+		try {
+			if (!progressWorkflow(workflowTransitionUtil, workflowTransitionParams)) {
+				return false;
+			}
+		} finally {
+			jac.setLoggedInUser(previousUser);
+		}
+
+		MutableIssue progressedIssue = ComponentManager.getInstance()
+				.getIssueManager().getIssueObject(issueToSetStatusOn.getId());
+		log.debug("Workflow transition completed successfully: "
+				+ progressedIssue.getGenericValue().toString());
+		return true;
+	}
+
+	/**
+	 * Validates and executes a workflow transition.
+	 * 
+	 * @return whether the transition was executed
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean progressWorkflow(WorkflowTransitionUtil workflowTransitionUtil,
+			Map<String, Object> workflowTransitionParams) {
 		ErrorCollection ecValidate = workflowTransitionUtil.validate();
 		if (ecValidate.hasAnyErrors()) {
 			log.debug("Workflow transition incomplete, there were "
@@ -612,7 +1346,7 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 						+ "], value ["
 						+ workflowTransitionParams.get(fieldId)
 						+ "], message : " + msg);
-				return;
+				return false;
 			}
 		}
 
@@ -629,14 +1363,11 @@ public class AdvancedCreateOrCommentHandler extends AbstractMessageHandler {
 				String msg = progressErrors.get(fieldId);
 				log.error("Workflow transition (progress) had a problem with the workflow field ["
 						+ fieldId + "] : message was " + msg);
-				return;
+				return false;
 			}
 		}
 
-		MutableIssue progressedIssue = ComponentManager.getInstance()
-				.getIssueManager().getIssueObject(issueToSetStatusOn.getId());
-		log.debug("Workflow transition completed successfully: "
-				+ progressedIssue.getGenericValue().toString());
+		return true;
 	}
 
 }
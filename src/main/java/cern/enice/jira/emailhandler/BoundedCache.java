@@ -0,0 +1,75 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache holding at most a given number of entries, the least
+ * recently used ones being evicted first. Entries may also expire after a
+ * given time to live.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+final class BoundedCache<K, V> {
+
+	private static final class CachedValue<V> {
+		final V value;
+		final long expiresAt;
+
+		CachedValue(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final long ttlMillis;
+	private final LinkedHashMap<K, CachedValue<V>> entries;
+
+	/**
+	 * @param maxSize  the maximum number of entries
+	 * @param ttlMillis  the time to live of the entries, in milliseconds, or 0 if they never expire
+	 */
+	BoundedCache(final int maxSize, long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the value of <code>key</code>, or <code>null</code> if it is not cached or expired
+	 */
+	synchronized V get(K key) {
+		CachedValue<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (ttlMillis > 0 && System.currentTimeMillis() > entry.expiresAt) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	synchronized void put(K key, V value) {
+		entries.put(key, new CachedValue<V>(value, System.currentTimeMillis() + ttlMillis));
+	}
+
+	synchronized void remove(K key) {
+		entries.remove(key);
+	}
+
+	synchronized void clear() {
+		entries.clear();
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+}
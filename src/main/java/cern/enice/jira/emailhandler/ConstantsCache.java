@@ -0,0 +1,229 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.config.ConstantsManager;
+import com.atlassian.jira.issue.issuetype.IssueType;
+import com.atlassian.jira.issue.priority.Priority;
+import com.atlassian.jira.issue.resolution.Resolution;
+
+/**
+ * Case-insensitive lookup tables for the priority, issue type and resolution
+ * constants of JIRA, so that parsing a message does not scan the
+ * {@link ConstantsManager} lists.
+ * <p>
+ * The tables are built when the handler is initialized, and rebuilt when
+ * JIRA clears its caches (see {@link EmailHandlerEventListener}), when they
+ * get older than {@link #MAX_AGE}, or on a miss (at most once per
+ * {@link #MIN_REBUILD_INTERVAL}) so that a newly created constant is found.
+ * The hit, miss and rebuild counters tell whether the cache is effective.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class ConstantsCache {
+
+	private static final Logger log = Logger.getLogger(ConstantsCache.class);
+
+	/** Maximum age of the tables, in milliseconds. */
+	public static final long MAX_AGE = 10 * 60 * 1000L;
+
+	/** Minimum delay between two rebuilds caused by misses, in milliseconds. */
+	public static final long MIN_REBUILD_INTERVAL = 60 * 1000L;
+
+	private static final ConstantsCache INSTANCE = new ConstantsCache();
+
+	/** An immutable snapshot of the constants. */
+	private static final class Tables {
+		final Map<String, String> priorityIdsByName;
+		final Map<String, String> issueTypeIdsByName;
+		final Map<String, String> issueTypeNamesById;
+		final Map<String, String> resolutionIdsByName;
+		final long builtAt;
+
+		Tables(Map<String, String> priorityIdsByName, Map<String, String> issueTypeIdsByName,
+				Map<String, String> issueTypeNamesById, Map<String, String> resolutionIdsByName) {
+			this.priorityIdsByName = Collections.unmodifiableMap(priorityIdsByName);
+			this.issueTypeIdsByName = Collections.unmodifiableMap(issueTypeIdsByName);
+			this.issueTypeNamesById = Collections.unmodifiableMap(issueTypeNamesById);
+			this.resolutionIdsByName = Collections.unmodifiableMap(resolutionIdsByName);
+			this.builtAt = System.currentTimeMillis();
+		}
+	}
+
+	private volatile Tables tables;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong rebuilds = new AtomicLong();
+
+	private ConstantsCache() {
+		// Singleton
+	}
+
+	/**
+	 * @return the cache shared by all handlers
+	 */
+	public static ConstantsCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Builds the tables, unless they are already built and fresh.
+	 */
+	public void ensureBuilt() {
+		getTables();
+	}
+
+	/**
+	 * Drops the tables; they will be rebuilt on next use.
+	 */
+	public void invalidate() {
+		tables = null;
+		log.debug("Constants cache invalidated");
+	}
+
+	/**
+	 * @param name  a priority name, e.g. "Major"
+	 * @return  the id of the priority, or <code>null</code> if there is no priority with this name
+	 */
+	public String getPriorityId(String name) {
+		return lookup(PRIORITY_IDS, name);
+	}
+
+	/**
+	 * @param name  an issue type name, e.g. "Bug"
+	 * @return  the id of the issue type, or <code>null</code> if there is no issue type with this name
+	 */
+	public String getIssueTypeId(String name) {
+		return lookup(ISSUETYPE_IDS, name);
+	}
+
+	/**
+	 * @param id  an issue type id
+	 * @return  the name of the issue type, or <code>null</code> if there is no issue type with this id
+	 */
+	public String getIssueTypeName(String id) {
+		return lookup(ISSUETYPE_NAMES, id);
+	}
+
+	/**
+	 * @param name  a resolution name, or its translation, e.g. "Fixed"
+	 * @return  the id of the resolution, or <code>null</code> if there is no resolution with this name
+	 */
+	public String getResolutionId(String name) {
+		return lookup(RESOLUTION_IDS, name);
+	}
+
+	/**
+	 * @return the number of lookups answered by the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups the cache could not answer
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of times the tables were built
+	 */
+	public long getRebuilds() {
+		return rebuilds.get();
+	}
+
+	public String toString() {
+		return "ConstantsCache[hits=" + hits.get() + ", misses=" + misses.get()
+				+ ", rebuilds=" + rebuilds.get() + "]";
+	}
+
+	private static final int PRIORITY_IDS = 0;
+	private static final int ISSUETYPE_IDS = 1;
+	private static final int ISSUETYPE_NAMES = 2;
+	private static final int RESOLUTION_IDS = 3;
+
+	private String lookup(int table, String key) {
+		if (key == null) {
+			return null;
+		}
+		String normalizedKey = key.toLowerCase(Locale.ENGLISH);
+		Tables current = getTables();
+		String value = select(current, table).get(normalizedKey);
+		if (value == null && System.currentTimeMillis() - current.builtAt > MIN_REBUILD_INTERVAL) {
+			value = select(rebuild(), table).get(normalizedKey);
+		}
+		if (value != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return value;
+	}
+
+	private static Map<String, String> select(Tables tables, int table) {
+		switch (table) {
+		case PRIORITY_IDS:
+			return tables.priorityIdsByName;
+		case ISSUETYPE_IDS:
+			return tables.issueTypeIdsByName;
+		case ISSUETYPE_NAMES:
+			return tables.issueTypeNamesById;
+		default:
+			return tables.resolutionIdsByName;
+		}
+	}
+
+	private Tables getTables() {
+		Tables current = tables;
+		if (current == null || System.currentTimeMillis() - current.builtAt > MAX_AGE) {
+			current = rebuild();
+		}
+		return current;
+	}
+
+	private synchronized Tables rebuild() {
+		ConstantsManager constantsManager = ComponentManager.getInstance().getConstantsManager();
+
+		Map<String, String> priorityIdsByName = new HashMap<String, String>();
+		for (Priority priority : constantsManager.getPriorityObjects()) {
+			priorityIdsByName.put(priority.getName().toLowerCase(Locale.ENGLISH), priority.getId());
+		}
+
+		Map<String, String> issueTypeIdsByName = new HashMap<String, String>();
+		Map<String, String> issueTypeNamesById = new HashMap<String, String>();
+		for (IssueType issueType : constantsManager.getAllIssueTypeObjects()) {
+			issueTypeIdsByName.put(issueType.getName().toLowerCase(Locale.ENGLISH), issueType.getId());
+			issueTypeNamesById.put(issueType.getId().toLowerCase(Locale.ENGLISH), issueType.getName());
+		}
+
+		Map<String, String> resolutionIdsByName = new HashMap<String, String>();
+		for (Resolution resolution : constantsManager.getResolutionObjects()) {
+			resolutionIdsByName.put(resolution.getName().toLowerCase(Locale.ENGLISH), resolution.getId());
+		}
+		for (Resolution resolution : constantsManager.getResolutionObjects()) {
+			String translation = resolution.getNameTranslation().toLowerCase(Locale.ENGLISH);
+			if (!resolutionIdsByName.containsKey(translation)) {
+				resolutionIdsByName.put(translation, resolution.getId());
+			}
+		}
+
+		Tables rebuilt = new Tables(priorityIdsByName, issueTypeIdsByName,
+				issueTypeNamesById, resolutionIdsByName);
+		tables = rebuilt;
+		rebuilds.incrementAndGet();
+		log.debug("Constants cache built: " + priorityIdsByName.size() + " priorities, "
+				+ issueTypeIdsByName.size() + " issue types, "
+				+ resolutionIdsByName.size() + " resolution names");
+		return rebuilt;
+	}
+}
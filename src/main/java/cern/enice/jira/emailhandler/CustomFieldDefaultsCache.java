@@ -0,0 +1,101 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.fields.CustomField;
+
+/**
+ * The custom fields having a default value for the issues of a given
+ * project and type, so that {@link AdvancedCreateIssueHandler} only asks
+ * those for their default value (JRA-11762) instead of every custom field
+ * of the instance. The default values themselves are not cached, some of
+ * them depend on the time (e.g. a date defaulting to now).
+ * <p>
+ * JIRA 5.1 publishes no event when a field configuration changes, so the
+ * lists expire after {@link #MAX_AGE}; they are also dropped when JIRA
+ * clears its caches (see {@link EmailHandlerEventListener}).
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class CustomFieldDefaultsCache {
+
+	private static final Logger log = Logger.getLogger(CustomFieldDefaultsCache.class);
+
+	/** Maximum age of a list, in milliseconds. */
+	public static final long MAX_AGE = 5 * 60 * 1000L;
+
+	/** Maximum number of lists cached. */
+	public static final int MAX_SIZE = 1000;
+
+	private static final CustomFieldDefaultsCache INSTANCE = new CustomFieldDefaultsCache();
+
+	private final BoundedCache<String, List<CustomField>> fieldsWithDefaults = new BoundedCache<String, List<CustomField>>(
+			MAX_SIZE, MAX_AGE);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+
+	private CustomFieldDefaultsCache() {
+		// Singleton
+	}
+
+	/**
+	 * @return the cache shared by all handlers
+	 */
+	public static CustomFieldDefaultsCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param issue  a new issue, whose project and type are set
+	 * @return  the custom fields applicable to <code>issue</code> which have a default value
+	 */
+	public List<CustomField> getFieldsWithDefaults(Issue issue) {
+		String key = issue.getProjectObject().getId() + "|" + issue.getIssueTypeObject().getId();
+		List<CustomField> fields = fieldsWithDefaults.get(key);
+		if (fields != null) {
+			hits.incrementAndGet();
+			return fields;
+		}
+		fields = build(issue);
+		fieldsWithDefaults.put(key, fields);
+		return fields;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<CustomField> build(Issue issue) {
+		builds.incrementAndGet();
+		List<CustomField> customFields = ComponentManager.getInstance().getCustomFieldManager()
+				.getCustomFieldObjects(issue);
+		List<CustomField> fields = new ArrayList<CustomField>();
+		for (CustomField customField : customFields) {
+			if (customField.getDefaultValue(issue) != null) {
+				fields.add(customField);
+			}
+		}
+		log.debug(fields.size() + " of the " + customFields.size() + " custom fields of project "
+				+ issue.getProjectObject().getKey() + ", issue type " + issue.getIssueTypeObject().getId()
+				+ " have a default value");
+		return Collections.unmodifiableList(fields);
+	}
+
+	/**
+	 * Drops the lists; they will be rebuilt on next use.
+	 */
+	public void invalidate() {
+		fieldsWithDefaults.clear();
+		log.debug("Custom field defaults cache invalidated");
+	}
+
+	public String toString() {
+		return "CustomFieldDefaultsCache[lists=" + fieldsWithDefaults.size() + ", hits=" + hits.get()
+				+ ", builds=" + builds.get() + "]";
+	}
+}
@@ -0,0 +1,56 @@
+package cern.enice.jira.emailhandler;
+
+import java.io.File;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.config.util.JiraHome;
+
+/**
+ * The directory where the email handler keeps its files:
+ * <code>&lt;jira home&gt;/data/emailhandler</code>.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+final class DataDirectory {
+
+	private static final Logger log = Logger.getLogger(DataDirectory.class);
+
+	private static final String NAME = "emailhandler";
+
+	private DataDirectory() {
+		// Utility class
+	}
+
+	/**
+	 * @return the directory, created if needed, or <code>null</code> if it is not available
+	 */
+	static File get() {
+		try {
+			JiraHome jiraHome = ComponentManager.getComponentInstanceOfType(JiraHome.class);
+			if (jiraHome == null) {
+				log.warn("JIRA home not available");
+				return null;
+			}
+			File directory = new File(jiraHome.getDataDirectory(), NAME);
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				log.warn("Could not create directory " + directory);
+				return null;
+			}
+			return directory;
+		} catch (RuntimeException e) {
+			log.warn("JIRA home not available", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param name  the name of a file
+	 * @return the file of the directory having this name, or <code>null</code> if the directory is not available
+	 */
+	static File getFile(String name) {
+		File directory = get();
+		return (directory != null ? new File(directory, name) : null);
+	}
+}
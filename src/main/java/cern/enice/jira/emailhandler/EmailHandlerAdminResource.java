@@ -0,0 +1,114 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.jira.security.JiraAuthenticationContext;
+import com.atlassian.jira.security.PermissionManager;
+import com.atlassian.jira.security.Permissions;
+import com.google.gson.Gson;
+
+/**
+ * REST resource giving the JIRA system administrators an insight into the
+ * background work of the email handler, under
+ * <code>/rest/emailhandler/1.0/admin</code>:
+ * <ul>
+ * <li><code>GET transitions</code>: the transitions waiting in the
+ * {@link TransitionQueue}, and the recent ones given up.</li>
+ * <li><code>GET quarantine</code>: the messages in the
+ * {@link QuarantineStore}.</li>
+ * <li><code>POST quarantine/{name}/replay</code>: processes a quarantined
+ * message again, synchronously.</li>
+ * </ul>
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+@Path("/admin")
+@Produces(MediaType.APPLICATION_JSON)
+public class EmailHandlerAdminResource {
+
+	private static final Logger log = Logger.getLogger(EmailHandlerAdminResource.class);
+
+	private final JiraAuthenticationContext authenticationContext;
+	private final PermissionManager permissionManager;
+
+	public EmailHandlerAdminResource(JiraAuthenticationContext authenticationContext,
+			PermissionManager permissionManager) {
+		this.authenticationContext = authenticationContext;
+		this.permissionManager = permissionManager;
+	}
+
+	/**
+	 * @return the number of pending transitions, and the recent failures, latest first
+	 */
+	@GET
+	@Path("/transitions")
+	public Response getTransitions() {
+		if (!isSystemAdministrator()) {
+			return Response.status(Response.Status.FORBIDDEN).build();
+		}
+		TransitionQueue queue = TransitionQueue.getInstance();
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("pending", Integer.valueOf(queue.getPendingCount()));
+		result.put("recentFailures", queue.getRecentFailures());
+		return ok(result);
+	}
+
+	/**
+	 * @return the quarantined messages, oldest first
+	 */
+	@GET
+	@Path("/quarantine")
+	public Response getQuarantine() {
+		if (!isSystemAdministrator()) {
+			return Response.status(Response.Status.FORBIDDEN).build();
+		}
+		return ok(QuarantineStore.getInstance().listQuarantined());
+	}
+
+	/**
+	 * @param name  the name of a quarantined message
+	 * @return whether the message was processed, and left the quarantine
+	 */
+	@POST
+	@Path("/quarantine/{name}/replay")
+	public Response replay(@PathParam("name") String name) {
+		if (!isSystemAdministrator()) {
+			return Response.status(Response.Status.FORBIDDEN).build();
+		}
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		try {
+			result.put("replayed", Boolean.valueOf(QuarantineStore.getInstance().replay(name)));
+		} catch (IllegalStateException e) {
+			result.put("error", e.getMessage());
+			return Response.status(Response.Status.CONFLICT)
+					.entity(new Gson().toJson(result)).type(MediaType.APPLICATION_JSON).build();
+		} catch (MessagingException e) {
+			log.error("Could not replay quarantined message " + name, e);
+			result.put("replayed", Boolean.FALSE);
+			result.put("error", e.toString());
+		}
+		return ok(result);
+	}
+
+	private boolean isSystemAdministrator() {
+		User user = authenticationContext.getLoggedInUser();
+		return (user != null && permissionManager.hasPermission(Permissions.SYSTEM_ADMIN, user));
+	}
+
+	private static Response ok(Object result) {
+		return Response.ok(new Gson().toJson(result), MediaType.APPLICATION_JSON).build();
+	}
+}
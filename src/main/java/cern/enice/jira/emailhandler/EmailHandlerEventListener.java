@@ -0,0 +1,75 @@
+package cern.enice.jira.emailhandler;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.atlassian.crowd.event.user.UserCreatedEvent;
+import com.atlassian.crowd.event.user.UserDeletedEvent;
+import com.atlassian.crowd.event.user.UserUpdatedEvent;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.event.ClearCacheEvent;
+
+/**
+ * Plugin component keeping the caches of the email handler in line with
+ * JIRA. The message handlers are instantiated by the mail service, hence
+ * the caches they share are singletons, and this listener is registered
+ * once for the lifetime of the plugin.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class EmailHandlerEventListener implements InitializingBean, DisposableBean {
+
+	private static final Logger log = Logger.getLogger(EmailHandlerEventListener.class);
+
+	private final EventPublisher eventPublisher;
+
+	public EmailHandlerEventListener(EventPublisher eventPublisher) {
+		this.eventPublisher = eventPublisher;
+	}
+
+	public void afterPropertiesSet() throws Exception {
+		eventPublisher.register(this);
+		UserEmailIndex.getInstance().loadInBackground();
+		log.debug("Email handler event listener registered");
+	}
+
+	public void destroy() throws Exception {
+		eventPublisher.unregister(this);
+		MessagePipeline.shutdownAll();
+		TransitionQueue.getInstance().shutdown();
+		IdempotencyStore.getInstance().close();
+		log.debug("Email handler event listener unregistered");
+	}
+
+	/**
+	 * JIRA clears its caches after configuration changes such as a data
+	 * import; ours are dropped as well.
+	 */
+	@EventListener
+	public void onClearCache(ClearCacheEvent event) {
+		ConstantsCache.getInstance().invalidate();
+		WorkflowActionCache.getInstance().invalidate();
+		IssueCreationProfileCache.getInstance().invalidate();
+		CustomFieldDefaultsCache.getInstance().invalidate();
+		ProjectComponentIndex.getInstance().invalidate();
+		IssueKeyScanner.getInstance().invalidate();
+		UserEmailIndex.getInstance().reload();
+	}
+
+	@EventListener
+	public void onUserCreated(UserCreatedEvent event) {
+		UserEmailIndex.getInstance().add(event.getUser().getName(), event.getUser().getEmailAddress());
+	}
+
+	@EventListener
+	public void onUserUpdated(UserUpdatedEvent event) {
+		UserEmailIndex.getInstance().add(event.getUser().getName(), event.getUser().getEmailAddress());
+	}
+
+	@EventListener
+	public void onUserDeleted(UserDeletedEvent event) {
+		UserEmailIndex.getInstance().remove(event.getUsername());
+	}
+}
@@ -22,7 +22,7 @@ import com.atlassian.jira.issue.comments.CommentManager;
 import com.atlassian.jira.issue.util.IssueUpdater;
 import com.atlassian.jira.plugins.mail.handlers.AbstractCommentHandler;
 import com.atlassian.jira.security.PermissionManager;
-import com.atlassian.jira.user.UserUtils;
+import com.atlassian.jira.service.util.handler.MessageHandlerContext;
 import com.atlassian.mail.MailUtils;
 
 public class FullCommentHandler extends AbstractCommentHandler
@@ -31,6 +31,9 @@ public class FullCommentHandler extends AbstractCommentHandler
 
 
 	private boolean m_registerSenderInCommentText = false;
+
+	/** Per-message value of m_registerSenderInCommentText, as one handler is shared by all messages. */
+	private final ThreadLocal<Boolean> m_registerSenderForMessage = new ThreadLocal<Boolean>();
 	
 	public FullCommentHandler(){
 		   super();
@@ -44,6 +47,41 @@ public class FullCommentHandler extends AbstractCommentHandler
 		m_registerSenderInCommentText = registerSenderInCommentText;
 	}
 
+	/**
+	 * Adds a message as a comment. The handler is initialized once and may be
+	 * shared across messages, hence the per-message settings are given here.
+	 *
+	 * @param message  the message to add as a comment
+	 * @param context  the context of the message handling
+	 * @param registerSenderInCommentText  whether the sender is unknown to JIRA and must be recorded in the comment
+	 * @return  whether the message must be deleted
+	 * @throws MessagingException
+	 */
+	public boolean handleMessage(Message message, MessageHandlerContext context, boolean registerSenderInCommentText) throws MessagingException {
+		m_registerSenderForMessage.set(Boolean.valueOf(registerSenderInCommentText));
+		try {
+			return handleMessage(message, context);
+		} finally {
+			m_registerSenderForMessage.remove();
+		}
+	}
+
+	private boolean isRegisterSenderInCommentText() {
+		Boolean registerSender = m_registerSenderForMessage.get();
+		return (registerSender != null ? registerSender.booleanValue() : m_registerSenderInCommentText);
+	}
+
+    /**
+     * Records the issue of the message in JIRA, and in memory for the
+     * replies to come (see {@link MessageThreadIndex}).
+     */
+    @Override
+    protected void recordMessageId(String type, Message message, Long issueId, MessageHandlerContext context) throws MessagingException
+    {
+        super.recordMessageId(type, message, issueId, context);
+        MessageThreadIndex.getInstance().putRecorded(message, issueId, context);
+    }
+
 	/**
      * Given a message, adds the entire message body as a comment to
      * the first issue referenced in the subject.
@@ -51,7 +89,7 @@ public class FullCommentHandler extends AbstractCommentHandler
 	protected String getEmailBody(Message message) throws MessagingException
     {
     	String body = MailUtils.getBody(message);
-    	if(m_registerSenderInCommentText){
+    	if(isRegisterSenderInCommentText()){
     		
     		List<String> senders = MailUtils.getSenders(message);
     		String firstSender = null;
@@ -67,7 +105,7 @@ public class FullCommentHandler extends AbstractCommentHandler
             	commentedVia += "but could not establish sender's address.";
             }
     		
-    		if (UserUtils.getUserByEmail(firstSender) == null) {
+    		if (UserEmailIndex.getInstance().getUserByEmail(firstSender) == null) {
 				body = "{panel:bgColor=yellow}" +
 						"*WARNING* - unknown JIRA user - " +
 						"it was automatically set to a generic support account.\n\n" +
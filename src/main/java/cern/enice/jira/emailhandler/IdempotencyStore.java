@@ -0,0 +1,402 @@
+package cern.enice.jira.emailhandler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.mail.MailUtils;
+
+/**
+ * The messages already processed, so that a message is processed once even
+ * if it is delivered twice: sent to both the JIRA address and its alias,
+ * or read again after a crash that prevented its deletion.
+ * <p>
+ * A message is identified by a 64-bit digest of its Message-ID, subject
+ * and body. A handler claims a message before parsing it, then commits it
+ * once processed, or releases it if it is kept in the mailbox for another
+ * attempt. A Bloom filter answers for most new messages without looking
+ * up the committed ones.
+ * <p>
+ * The committed messages are appended to a log in the data directory (see
+ * {@link DataDirectory}) before the message is deleted, so they survive a
+ * restart. They are forgotten after {@link #RETENTION}, or once
+ * {@link #MAX_MESSAGES} more recent ones were committed, which bounds the
+ * memory used and keeps the Bloom filter around 1% of false positives;
+ * the forgotten entries are dropped from the log when it is loaded, and
+ * then every 1000 commits.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class IdempotencyStore {
+
+	private static final Logger log = Logger.getLogger(IdempotencyStore.class);
+
+	/** Time a processed message is remembered, in milliseconds. */
+	public static final long RETENTION = 7 * 24 * 60 * 60 * 1000L;
+
+	/** Maximum number of processed messages remembered. */
+	public static final int MAX_MESSAGES = 100000;
+
+	private static final String LOG_FILE = "idempotency.log";
+	/** Number of commits after which expired entries are dropped. */
+	private static final int COMPACT_THRESHOLD = 1000;
+
+	/** Size of the Bloom filter, a power of 2 (128 kB), 10 bits per message. */
+	private static final int BLOOM_BITS = 1 << 20;
+	private static final int BLOOM_HASHES = 4;
+
+	private static final IdempotencyStore INSTANCE = new IdempotencyStore(null);
+
+	/**
+	 * The outcome of a claim.
+	 */
+	public enum Claim {
+		/** The message is new, the caller processes it. */
+		CLAIMED,
+		/** Another copy of the message is being processed. */
+		IN_PROGRESS,
+		/** The message was processed already. */
+		DUPLICATE
+	}
+
+	/** The log given to the constructor, or null for that of the data directory. */
+	private final File logLocation;
+	private boolean loaded = false;
+	private File logFile;
+	private FileOutputStream logStream;
+	private Writer logWriter;
+	private int commitsSinceCompaction = 0;
+
+	private final BitSet bloom = new BitSet(BLOOM_BITS);
+	/** Committed digests, with the time they were committed, oldest first. */
+	private final Map<Long, Long> committed = new LinkedHashMap<Long, Long>() {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			if (size() > MAX_MESSAGES) {
+				// Still in the Bloom filter until the next compaction
+				evicted = true;
+				return true;
+			}
+			return false;
+		}
+	};
+	/** Whether messages were forgotten since the Bloom filter was built. */
+	private boolean evicted = false;
+	private final Set<Long> inProgress = new HashSet<Long>();
+
+	private final AtomicLong claims = new AtomicLong();
+	private final AtomicLong bloomMisses = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+
+	/**
+	 * @param logLocation  the log, or <code>null</code> for that of the data
+	 *                     directory, used by {@link #getInstance()}
+	 */
+	IdempotencyStore(File logLocation) {
+		this.logLocation = logLocation;
+	}
+
+	/**
+	 * @return the store shared by all handlers
+	 */
+	public static IdempotencyStore getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param message  a message
+	 * @return  the digest identifying <code>message</code>, or <code>null</code> if it has no Message-ID
+	 * @throws MessagingException
+	 */
+	public static Long getDigest(Message message) throws MessagingException {
+		String[] messageIds = message.getHeader("Message-ID");
+		if (messageIds == null || messageIds.length == 0 || messageIds[0].trim().length() == 0) {
+			return null;
+		}
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(messageIds[0].trim().getBytes("UTF-8"));
+			md5.update((byte) 0);
+			String subject = message.getSubject();
+			if (subject != null) {
+				md5.update(subject.getBytes("UTF-8"));
+			}
+			md5.update((byte) 0);
+			String body = MailUtils.getBody(message);
+			if (body != null) {
+				md5.update(body.getBytes("UTF-8"));
+			}
+			byte[] digest = md5.digest();
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (digest[i] & 0xff);
+			}
+			return Long.valueOf(value);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Claims a message for processing.
+	 *
+	 * @param digest  the digest of the message
+	 * @return  whether the caller must process the message
+	 */
+	public synchronized Claim claim(Long digest) {
+		ensureLoaded();
+		claims.incrementAndGet();
+		if (!mightContain(digest.longValue())) {
+			bloomMisses.incrementAndGet();
+		} else {
+			Long committedAt = committed.get(digest);
+			if (committedAt != null && System.currentTimeMillis() - committedAt.longValue() < RETENTION) {
+				duplicates.incrementAndGet();
+				return Claim.DUPLICATE;
+			}
+		}
+		if (!inProgress.add(digest)) {
+			return Claim.IN_PROGRESS;
+		}
+		return Claim.CLAIMED;
+	}
+
+	/**
+	 * Records that a claimed message was processed; it is written to the
+	 * log before this method returns.
+	 *
+	 * @param digest  the digest of the message
+	 */
+	public synchronized void commit(Long digest) {
+		inProgress.remove(digest);
+		long now = System.currentTimeMillis();
+		add(digest, now);
+		append(digest.longValue(), now);
+		if (++commitsSinceCompaction >= COMPACT_THRESHOLD) {
+			compact();
+		}
+	}
+
+	/**
+	 * Releases a claimed message which was not processed, e.g. kept in the
+	 * mailbox for another attempt.
+	 *
+	 * @param digest  the digest of the message
+	 */
+	public synchronized void release(Long digest) {
+		inProgress.remove(digest);
+	}
+
+	/**
+	 * Closes the log; it is opened again on next use.
+	 */
+	public synchronized void close() {
+		closeLog();
+		loaded = false;
+		committed.clear();
+		inProgress.clear();
+		bloom.clear();
+		evicted = false;
+	}
+
+	private void add(Long digest, long committedAt) {
+		committed.put(digest, Long.valueOf(committedAt));
+		long value = digest.longValue();
+		int h1 = (int) value;
+		int h2 = (int) (value >>> 32);
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			bloom.set((h1 + i * h2) & (BLOOM_BITS - 1));
+		}
+	}
+
+	boolean mightContain(long value) {
+		int h1 = (int) value;
+		int h2 = (int) (value >>> 32);
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			if (!bloom.get((h1 + i * h2) & (BLOOM_BITS - 1))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Log: one line per committed message, the time it was committed and its
+	 * digest, in hexadecimal.
+	 */
+
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		logFile = (logLocation != null ? logLocation : DataDirectory.getFile(LOG_FILE));
+		if (logFile == null) {
+			log.warn("No data directory, processed messages will be forgotten on restart");
+			return;
+		}
+		if (logFile.exists()) {
+			readLog();
+		}
+		compact();
+		log.info("Idempotency store loaded, " + committed.size() + " messages processed in the last "
+				+ (RETENTION / (24 * 60 * 60 * 1000L)) + " days");
+	}
+
+	private void readLog() {
+		long oldest = System.currentTimeMillis() - RETENTION;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "US-ASCII"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf(' ');
+				try {
+					long committedAt = Long.parseLong(line.substring(0, separator), 16);
+					long digest = parseUnsignedHex(line.substring(separator + 1));
+					if (committedAt >= oldest) {
+						add(Long.valueOf(digest), committedAt);
+					}
+				} catch (RuntimeException e) {
+					// e.g. a line truncated by a crash
+					log.warn("Ignoring malformed line of " + logFile + ": " + line);
+				}
+			}
+		} catch (IOException e) {
+			log.error("Could not read " + logFile, e);
+		} finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {
+				log.error("Could not close " + logFile);
+			}
+		}
+	}
+
+	/**
+	 * Drops the expired messages, and rewrites the log with the others.
+	 */
+	private void compact() {
+		long oldest = System.currentTimeMillis() - RETENTION;
+		boolean expired = false;
+		for (Iterator<Long> it = committed.values().iterator(); it.hasNext();) {
+			if (it.next().longValue() < oldest) {
+				it.remove();
+				expired = true;
+			}
+		}
+		if (expired || evicted) {
+			// A Bloom filter cannot forget
+			Map<Long, Long> live = new LinkedHashMap<Long, Long>(committed);
+			committed.clear();
+			bloom.clear();
+			for (Map.Entry<Long, Long> entry : live.entrySet()) {
+				add(entry.getKey(), entry.getValue().longValue());
+			}
+			evicted = false;
+		}
+		commitsSinceCompaction = 0;
+
+		if (logFile == null) {
+			return;
+		}
+		closeLog();
+		// The compacted log replaces the log only once on disk; otherwise the
+		// log is kept as is
+		File compacted = new File(logFile.getPath() + ".tmp");
+		try {
+			logStream = new FileOutputStream(compacted);
+			logWriter = new OutputStreamWriter(logStream, "US-ASCII");
+			for (Map.Entry<Long, Long> entry : committed.entrySet()) {
+				logWriter.write(formatLine(entry.getKey().longValue(), entry.getValue().longValue()));
+			}
+			logWriter.flush();
+			logStream.getFD().sync();
+			closeLog();
+			if (!compacted.renameTo(logFile)) {
+				log.error("Could not rename " + compacted + " to " + logFile + ", the log is not compacted");
+				compacted.delete();
+			}
+		} catch (IOException e) {
+			log.error("Could not write " + compacted + ", the log is not compacted", e);
+			closeLog();
+			compacted.delete();
+		}
+		try {
+			logStream = new FileOutputStream(logFile, true);
+			logWriter = new OutputStreamWriter(logStream, "US-ASCII");
+		} catch (IOException e) {
+			log.error("Could not open " + logFile + ", processed messages will be forgotten on restart", e);
+			closeLog();
+		}
+	}
+
+	private void append(long digest, long committedAt) {
+		if (logWriter == null) {
+			return;
+		}
+		try {
+			logWriter.write(formatLine(digest, committedAt));
+			logWriter.flush();
+			// On disk before the message is deleted
+			logStream.getFD().sync();
+		} catch (IOException e) {
+			log.error("Could not write " + logFile, e);
+		}
+	}
+
+	private void closeLog() {
+		if (logWriter != null) {
+			try {
+				logWriter.close();
+			} catch (IOException e) {
+				log.error("Could not close " + logFile);
+			}
+			logWriter = null;
+			logStream = null;
+		}
+	}
+
+	static String formatLine(long digest, long committedAt) {
+		return Long.toHexString(committedAt) + ' ' + Long.toHexString(digest) + '\n';
+	}
+
+	static long parseUnsignedHex(String value) {
+		if (value.length() == 16) {
+			// Long.parseLong rejects the values above Long.MAX_VALUE
+			return (Long.parseLong(value.substring(0, 8), 16) << 32) | Long.parseLong(value.substring(8), 16);
+		}
+		return Long.parseLong(value, 16);
+	}
+
+	public synchronized String toString() {
+		return "IdempotencyStore[messages=" + committed.size() + ", inProgress=" + inProgress.size()
+				+ ", claims=" + claims.get() + ", bloomMisses=" + bloomMisses.get()
+				+ ", duplicates=" + duplicates.get() + "]";
+	}
+}
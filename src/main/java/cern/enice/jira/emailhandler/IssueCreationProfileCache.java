@@ -0,0 +1,164 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.jira.ManagerFactory;
+import com.atlassian.jira.config.ConstantsManager;
+import com.atlassian.jira.issue.IssueFieldConstants;
+import com.atlassian.jira.issue.priority.Priority;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.util.EasyList;
+import com.atlassian.jira.web.bean.FieldVisibilityBean;
+
+/**
+ * The settings {@link AdvancedCreateIssueHandler} needs to create an issue
+ * of a given type in a given project - field visibility, default priority
+ * and default security level - which almost never change, cached per
+ * project and issue type.
+ * <p>
+ * JIRA 5.1 publishes no event when a field configuration, issue security
+ * or priority scheme changes, so the profiles expire after {@link #MAX_AGE};
+ * they are also dropped when JIRA clears its caches (see
+ * {@link EmailHandlerEventListener}).
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class IssueCreationProfileCache {
+
+	private static final Logger log = Logger.getLogger(IssueCreationProfileCache.class);
+
+	/** Maximum age of a profile, in milliseconds. */
+	public static final long MAX_AGE = 5 * 60 * 1000L;
+
+	/** Maximum number of profiles cached. */
+	public static final int MAX_SIZE = 1000;
+
+	private static final IssueCreationProfileCache INSTANCE = new IssueCreationProfileCache();
+
+	/**
+	 * The creation settings of a project and issue type.
+	 */
+	public static final class Profile {
+		private final boolean priorityVisible;
+		private final boolean descriptionVisible;
+		private final String defaultPriorityId;
+		private final Long defaultSecurityLevelId;
+
+		Profile(boolean priorityVisible, boolean descriptionVisible, String defaultPriorityId,
+				Long defaultSecurityLevelId) {
+			this.priorityVisible = priorityVisible;
+			this.descriptionVisible = descriptionVisible;
+			this.defaultPriorityId = defaultPriorityId;
+			this.defaultSecurityLevelId = defaultSecurityLevelId;
+		}
+
+		/**
+		 * @return whether the priority is shown in some scheme (JRA-7646)
+		 */
+		public boolean isPriorityVisible() {
+			return priorityVisible;
+		}
+
+		/**
+		 * @return whether the description is shown in some scheme (JRA-7646)
+		 */
+		public boolean isDescriptionVisible() {
+			return descriptionVisible;
+		}
+
+		/**
+		 * @return the id of the default priority, or of the middle one if there is no default
+		 */
+		public String getDefaultPriorityId() {
+			return defaultPriorityId;
+		}
+
+		/**
+		 * @return the id of the default security level of the project, or <code>null</code>
+		 */
+		public Long getDefaultSecurityLevelId() {
+			return defaultSecurityLevelId;
+		}
+	}
+
+	private final BoundedCache<String, Profile> profiles = new BoundedCache<String, Profile>(MAX_SIZE, MAX_AGE);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+
+	private IssueCreationProfileCache() {
+		// Singleton
+	}
+
+	/**
+	 * @return the cache shared by all handlers
+	 */
+	public static IssueCreationProfileCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param project  the project of the new issue
+	 * @param issueTypeId  the type of the new issue
+	 * @return  the creation settings
+	 */
+	public Profile getProfile(Project project, String issueTypeId) {
+		String key = project.getId() + "|" + issueTypeId;
+		Profile profile = profiles.get(key);
+		if (profile != null) {
+			hits.incrementAndGet();
+			return profile;
+		}
+		profile = build(project, issueTypeId);
+		profiles.put(key, profile);
+		return profile;
+	}
+
+	/**
+	 * Drops the profiles; they will be rebuilt on next use.
+	 */
+	public void invalidate() {
+		profiles.clear();
+		log.debug("Issue creation profile cache invalidated");
+	}
+
+	@SuppressWarnings("deprecation")
+	private Profile build(Project project, String issueTypeId) {
+		builds.incrementAndGet();
+		FieldVisibilityBean visibility = new FieldVisibilityBean();
+		boolean priorityVisible = !visibility.isFieldHiddenInAllSchemes(project.getId(),
+				IssueFieldConstants.PRIORITY, EasyList.build(issueTypeId));
+		boolean descriptionVisible = !visibility.isFieldHiddenInAllSchemes(project.getId(),
+				IssueFieldConstants.DESCRIPTION, EasyList.build(issueTypeId));
+
+		Long securityLevelId = ManagerFactory.getIssueSecurityLevelManager()
+				.getSchemeDefaultSecurityLevel(project.getGenericValue());
+
+		log.debug("Built the creation profile of project " + project.getKey() + ", issue type " + issueTypeId);
+		return new Profile(priorityVisible, descriptionVisible, getDefaultPriorityId(), securityLevelId);
+	}
+
+	private static String getDefaultPriorityId() {
+		// if priority header is not set, assume it's 'default'
+		ConstantsManager constantsManager = ManagerFactory.getConstantsManager();
+		Priority defaultPriority = constantsManager.getDefaultPriorityObject();
+		if (defaultPriority != null) {
+			return defaultPriority.getId();
+		}
+		log.error("Default priority was null. Using the 'middle' priority.");
+		List<Priority> priorities = new ArrayList<Priority>(constantsManager.getPriorityObjects());
+		if (priorities.isEmpty()) {
+			return null;
+		}
+		return priorities.get((priorities.size() - 1) / 2).getId();
+	}
+
+	public String toString() {
+		return "IssueCreationProfileCache[profiles=" + profiles.size() + ", hits=" + hits.get()
+				+ ", builds=" + builds.get() + "]";
+	}
+}
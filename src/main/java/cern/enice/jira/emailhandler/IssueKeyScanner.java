@@ -0,0 +1,324 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.jira.ManagerFactory;
+import com.atlassian.jira.project.Project;
+
+/**
+ * Finds the issue keys in a subject in a single pass, without querying the
+ * database for words that merely look like keys (e.g. <code>UTF-8</code>):
+ * a key must start with the key of an existing project, looked up in a
+ * trie of the project keys, and its number must not be above the last
+ * number the project gave.
+ * <p>
+ * Keys are matched ignoring case, like
+ * {@link com.atlassian.jira.service.util.ServiceUtils#findIssueInString},
+ * and must not be preceded or followed by a letter or a digit.
+ * <p>
+ * JIRA 5.1 publishes no event when a project is created, renamed or
+ * deleted, so the trie is rebuilt after {@link #MAX_AGE}, and when JIRA
+ * clears its caches (see {@link EmailHandlerEventListener}). The number of
+ * issues of a project is read again from JIRA, which caches the projects,
+ * when a key is above it.
+ * <p>
+ * The trie and the numbers may still be stale, so a key is not dropped on
+ * their word only: a key above the number of its project is returned all
+ * the same, for the caller to look it up, and so is a key whose prefix is
+ * not in the trie but is the key of a project JIRA knows (which also
+ * rebuilds the trie).
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class IssueKeyScanner {
+
+	private static final Logger log = Logger.getLogger(IssueKeyScanner.class);
+
+	/** Maximum age of the trie, in milliseconds. */
+	public static final long MAX_AGE = 5 * 60 * 1000L;
+
+	private static final IssueKeyScanner INSTANCE = new IssueKeyScanner(new JiraProjectSource());
+
+	/**
+	 * The projects of JIRA, as seen by the scanner.
+	 */
+	interface ProjectSource {
+		/**
+		 * @return  the key of each project, by project id
+		 */
+		Map<Long, String> getProjectKeys();
+
+		/**
+		 * @return  the highest issue number the project gave, 0 if it does not exist
+		 */
+		long getCounter(Long projectId);
+
+		/**
+		 * @return  whether there is a project with this key
+		 */
+		boolean exists(String projectKey);
+	}
+
+	private static final class JiraProjectSource implements ProjectSource {
+		public Map<Long, String> getProjectKeys() {
+			Map<Long, String> keys = new LinkedHashMap<Long, String>();
+			for (Project project : ManagerFactory.getProjectManager().getProjectObjects()) {
+				keys.put(project.getId(), project.getKey());
+			}
+			return keys;
+		}
+
+		@SuppressWarnings("deprecation")
+		public long getCounter(Long projectId) {
+			Project project = ManagerFactory.getProjectManager().getProjectObj(projectId);
+			if (project == null) {
+				return 0;
+			}
+			Long counter = project.getGenericValue().getLong("counter");
+			return (counter != null ? counter.longValue() : 0);
+		}
+
+		public boolean exists(String projectKey) {
+			return ManagerFactory.getProjectManager().getProjectObjByKey(projectKey) != null;
+		}
+	}
+
+	/**
+	 * A node of the trie; the nodes ending a project key have its project.
+	 */
+	private static final class Node {
+		final Map<Character, Node> children = new HashMap<Character, Node>(4);
+		ProjectRange project;
+	}
+
+	/**
+	 * A project, and the highest issue number it gave when last read.
+	 */
+	private static final class ProjectRange {
+		final Long projectId;
+		volatile long counter;
+
+		ProjectRange(Long projectId, long counter) {
+			this.projectId = projectId;
+			this.counter = counter;
+		}
+	}
+
+	private static final class Trie {
+		final Node root;
+		final long builtAt = System.currentTimeMillis();
+
+		Trie(Node root) {
+			this.root = root;
+		}
+	}
+
+	private final ProjectSource projectSource;
+	private volatile Trie trie;
+
+	private final AtomicLong scans = new AtomicLong();
+	private final AtomicLong candidates = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+	private final AtomicLong fallbacks = new AtomicLong();
+
+	/**
+	 * @param projectSource  the projects to find the keys of; {@link #getInstance()} uses those of JIRA
+	 */
+	IssueKeyScanner(ProjectSource projectSource) {
+		this.projectSource = projectSource;
+	}
+
+	/**
+	 * @return the scanner shared by all handlers
+	 */
+	public static IssueKeyScanner getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param text  a subject
+	 * @return  the keys in <code>text</code> of issues which may exist, upper
+	 *          case, in order of appearance; empty if there is none. The
+	 *          keys the trie could not confirm are included, to be looked up.
+	 */
+	public List<String> findIssueKeys(String text) {
+		if (text == null || text.indexOf('-') < 0) {
+			return Collections.emptyList();
+		}
+		scans.incrementAndGet();
+		Node root = getTrie().root;
+		List<String> keys = new ArrayList<String>(1);
+		int length = text.length();
+		for (int start = 0; start < length; start++) {
+			if (start > 0 && Character.isLetterOrDigit(text.charAt(start - 1))) {
+				continue;
+			}
+			// Longest project key first: keys may be prefixes of other keys
+			Node node = root;
+			List<Integer> ends = null;
+			List<ProjectRange> projects = null;
+			for (int i = start; i < length && node != null; i++) {
+				node = node.children.get(Character.valueOf(Character.toUpperCase(text.charAt(i))));
+				if (node != null && node.project != null && i + 1 < length && text.charAt(i + 1) == '-') {
+					if (ends == null) {
+						ends = new ArrayList<Integer>(1);
+						projects = new ArrayList<ProjectRange>(1);
+					}
+					ends.add(Integer.valueOf(i + 1));
+					projects.add(node.project);
+				}
+			}
+			if (ends == null) {
+				String key = findUnknownProjectKey(text, start);
+				if (key != null) {
+					fallbacks.incrementAndGet();
+					keys.add(key);
+				}
+				continue;
+			}
+			String outOfRange = null;
+			for (int k = ends.size() - 1; k >= 0; k--) {
+				int dash = ends.get(k).intValue();
+				int end = getNumberEnd(text, dash);
+				if (end < 0) {
+					continue;
+				}
+				long number = Long.parseLong(text.substring(dash + 1, end));
+				if (isInRange(projects.get(k), number)) {
+					candidates.incrementAndGet();
+					keys.add(text.substring(start, end).toUpperCase());
+					outOfRange = null;
+					break;
+				}
+				if (outOfRange == null && number > 0) {
+					outOfRange = text.substring(start, end).toUpperCase();
+				}
+			}
+			if (outOfRange != null) {
+				// The number of issues read may be stale
+				fallbacks.incrementAndGet();
+				keys.add(outOfRange);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @param dash  the index of the dash following a project key
+	 * @return  the end of the issue number following <code>dash</code>, or
+	 *          -1 if there is no number, or it is followed by a letter or a digit
+	 */
+	private static int getNumberEnd(String text, int dash) {
+		int length = text.length();
+		int end = dash + 1;
+		while (end < length && isAsciiDigit(text.charAt(end))) {
+			end++;
+		}
+		if (end == dash + 1 || end - dash - 1 > 18
+				|| (end < length && Character.isLetterOrDigit(text.charAt(end)))) {
+			return -1;
+		}
+		return end;
+	}
+
+	/**
+	 * Finds an issue key starting at <code>start</code> whose project key is
+	 * not in the trie, but is that of a project JIRA knows, e.g. a project
+	 * created since the trie was built. JIRA caches the projects, so words
+	 * merely looking like keys cost no query.
+	 *
+	 * @return  the key, upper case, or <code>null</code> if there is none
+	 */
+	private String findUnknownProjectKey(String text, int start) {
+		int length = text.length();
+		int dash = start;
+		while (dash < length && (Character.isLetterOrDigit(text.charAt(dash)) || text.charAt(dash) == '_')) {
+			dash++;
+		}
+		if (dash == start || dash >= length || text.charAt(dash) != '-'
+				|| !Character.isLetter(text.charAt(start))) {
+			return null;
+		}
+		int end = getNumberEnd(text, dash);
+		if (end < 0) {
+			return null;
+		}
+		String projectKey = text.substring(start, dash).toUpperCase();
+		if (!projectSource.exists(projectKey)) {
+			return null;
+		}
+		log.debug("Project " + projectKey + " is not indexed yet, rebuilding the index");
+		invalidate();
+		return text.substring(start, end).toUpperCase();
+	}
+
+	private static boolean isAsciiDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private boolean isInRange(ProjectRange range, long number) {
+		if (number < 1) {
+			return false;
+		}
+		if (number > range.counter) {
+			// Issues created since the counter was read?
+			range.counter = projectSource.getCounter(range.projectId);
+		}
+		return number <= range.counter;
+	}
+
+	private Trie getTrie() {
+		Trie current = trie;
+		if (current == null || System.currentTimeMillis() - current.builtAt > MAX_AGE) {
+			current = build();
+			trie = current;
+		}
+		return current;
+	}
+
+	private Trie build() {
+		builds.incrementAndGet();
+		Map<Long, String> projects = projectSource.getProjectKeys();
+		Node root = new Node();
+		for (Map.Entry<Long, String> project : projects.entrySet()) {
+			String key = project.getValue();
+			if (key == null || key.length() == 0) {
+				continue;
+			}
+			Node node = root;
+			for (int i = 0; i < key.length(); i++) {
+				Character c = Character.valueOf(Character.toUpperCase(key.charAt(i)));
+				Node child = node.children.get(c);
+				if (child == null) {
+					child = new Node();
+					node.children.put(c, child);
+				}
+				node = child;
+			}
+			node.project = new ProjectRange(project.getKey(), projectSource.getCounter(project.getKey()));
+		}
+		log.debug("Indexed the keys of " + projects.size() + " projects");
+		return new Trie(root);
+	}
+
+	/**
+	 * Drops the trie; it will be rebuilt on next use.
+	 */
+	public void invalidate() {
+		trie = null;
+		log.debug("Issue key scanner invalidated");
+	}
+
+	public String toString() {
+		return "IssueKeyScanner[scans=" + scans.get() + ", candidates=" + candidates.get()
+				+ ", fallbacks=" + fallbacks.get() + ", builds=" + builds.get() + "]";
+	}
+}
@@ -0,0 +1,45 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks serializing the updates made to an issue by concurrent
+ * messages: summary append, comment and workflow transition. Messages are
+ * processed concurrently by a {@link MessagePipeline}, and by the mail
+ * services of different mailboxes; replies to one issue must not race,
+ * while unrelated issues are only serialized when their keys share a stripe.
+ * <p>
+ * The locks are fair, so that waiting messages acquire the lock of an
+ * issue in the order they asked for it.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+final class IssueLocks {
+
+	/** Number of stripes; a power of two. */
+	private static final int STRIPES = 256;
+
+	private static final Lock[] locks = new Lock[STRIPES];
+
+	static {
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new ReentrantLock(true);
+		}
+	}
+
+	private IssueLocks() {
+		// Static utility
+	}
+
+	/**
+	 * @param issueKey  the key of an issue
+	 * @return  the lock guarding the updates of the issue
+	 */
+	static Lock getLock(String issueKey) {
+		int hash = issueKey.hashCode();
+		// Spread the bits, as issue keys of one project only differ by their last characters
+		hash ^= (hash >>> 16);
+		return locks[hash & (STRIPES - 1)];
+	}
+}
@@ -0,0 +1,33 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.Map;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * A check run on each incoming message before it is parsed, see
+ * {@link MessageFilterChain}. Filters should only look at the headers of the
+ * message; rejected messages are deleted without further processing.
+ * <p>
+ * Additional filters can be configured with <code>filter&lt;N&gt;=className</code>
+ * handler parameters; such classes need a public no-arg constructor.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public interface MessageFilter {
+
+	/**
+	 * Initializes the filter with the parameters of the handler.
+	 *
+	 * @param params  the handler parameters
+	 */
+	void init(Map params);
+
+	/**
+	 * @param message  an incoming message
+	 * @return  whether the message may be processed
+	 * @throws MessagingException  if the headers of the message could not be read
+	 */
+	boolean accept(Message message) throws MessagingException;
+}
@@ -0,0 +1,249 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.crowd.embedded.api.User;
+
+/**
+ * The ordered list of {@link MessageFilter}s run on each incoming message
+ * before it is parsed, so that the messages which will be dropped anyway
+ * (no sender, sender not whitelisted, automatic replies...) cost neither
+ * body decoding nor JIRA lookups. The first filter rejecting a message
+ * stops the chain. The number of messages rejected by each filter is
+ * counted.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class MessageFilterChain {
+
+	private static final Logger log = Logger.getLogger(MessageFilterChain.class);
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<MessageFilter> filters = new ArrayList<MessageFilter>();
+	private final List<AtomicLong> rejections = new ArrayList<AtomicLong>();
+	private final AtomicLong accepted = new AtomicLong();
+
+	/**
+	 * Appends a filter to the chain.
+	 *
+	 * @param name  the name of the filter, used for logging and counting
+	 * @param filter  the filter, already initialized
+	 */
+	public void add(String name, MessageFilter filter) {
+		names.add(name);
+		filters.add(filter);
+		rejections.add(new AtomicLong());
+	}
+
+	/**
+	 * Runs the filters on a message. A filter failing with a runtime exception
+	 * does not let the message through: the message is kept in the mailbox,
+	 * to be filtered again at the next poll.
+	 *
+	 * @param message  an incoming message
+	 * @return  whether the message passed all the filters
+	 * @throws MessagingException  if the headers of the message could not be read, or a filter failed
+	 */
+	public boolean accept(Message message) throws MessagingException {
+		return accept(new MessageWorkItem(message, null));
+	}
+
+	/**
+	 * Runs the filters on a message, recording in <code>work</code> what they
+	 * resolved on the way, e.g. the sender.
+	 *
+	 * @param work  an incoming message
+	 * @return  whether the message passed all the filters
+	 * @throws MessagingException  if the headers of the message could not be read, or a filter failed
+	 */
+	boolean accept(MessageWorkItem work) throws MessagingException {
+		for (int i = 0; i < filters.size(); i++) {
+			MessageFilter filter = filters.get(i);
+			boolean passed;
+			try {
+				if (filter instanceof WorkItemFilter) {
+					passed = ((WorkItemFilter) filter).accept(work);
+				} else {
+					passed = filter.accept(work.getMessage());
+				}
+			} catch (RuntimeException e) {
+				// Failing open would let through what the filter is meant to stop
+				log.error("Message filter " + names.get(i) + " failed, keeping the message", e);
+				throw new MessagingException("Message filter " + names.get(i) + " failed", e);
+			}
+			if (!passed) {
+				rejections.get(i).incrementAndGet();
+				log.debug("Message rejected by filter " + names.get(i));
+				return false;
+			}
+		}
+		accepted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return the number of messages rejected by each filter, in the order of the chain
+	 */
+	public Map<String, Long> getRejections() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < names.size(); i++) {
+			counts.put(names.get(i), Long.valueOf(rejections.get(i).get()));
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the number of messages which passed all the filters
+	 */
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	public String toString() {
+		return "MessageFilterChain[accepted=" + accepted.get() + ", rejected=" + getRejections() + "]";
+	}
+
+	/**
+	 * Rejects the messages without From address.
+	 */
+	static final class MissingFromFilter implements MessageFilter {
+
+		public void init(Map params) {
+			// No parameter
+		}
+
+		public boolean accept(Message message) throws MessagingException {
+			Address[] from = message.getFrom();
+			if (from == null || from.length == 0) {
+				log.warn("Message has no FROM address in its header ! ignoring message...");
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A filter which records what it resolves in the work item of the
+	 * message, so that the processing stages need not resolve it again.
+	 */
+	interface WorkItemFilter extends MessageFilter {
+
+		/**
+		 * @param work  an incoming message
+		 * @return  whether the message may be processed
+		 * @throws MessagingException  if the headers of the message could not be read
+		 */
+		boolean accept(MessageWorkItem work) throws MessagingException;
+	}
+
+	/**
+	 * Rejects the messages whose sender is neither a JIRA user nor matched by
+	 * the whitelist (JMH-17). The sender it looked up is recorded in the work
+	 * item.
+	 */
+	static final class WhitelistFilter implements WorkItemFilter {
+
+		private final WhitelistMatcher whitelist;
+
+		WhitelistFilter(WhitelistMatcher whitelist) {
+			this.whitelist = whitelist;
+		}
+
+		public void init(Map params) {
+			// Compiled by the handler
+		}
+
+		public boolean accept(Message message) throws MessagingException {
+			return accept(new MessageWorkItem(message, null));
+		}
+
+		public boolean accept(MessageWorkItem work) throws MessagingException {
+			Address[] from = work.getMessage().getFrom();
+			String fromEmail = AdvancedCreateOrCommentHandler.extractEmailAddressOnly(from[0].toString());
+			User sender = UserEmailIndex.getInstance().getUserByEmail(fromEmail);
+			work.setFromEmail(fromEmail);
+			work.setSender(sender);
+			if (sender != null) {
+				return true;
+			}
+			log.debug("Trying to find a match for " + fromEmail);
+			if (!whitelist.matches(fromEmail)) {
+				log.warn("Sender " + fromEmail
+						+ " did not match any of the whitelist regular expressions");
+				return false;
+			}
+			log.debug("Sender " + fromEmail + " matched the whitelist, processing message...");
+			return true;
+		}
+	}
+
+	/**
+	 * Rejects automatic replies (RFC 3834 <code>Auto-Submitted</code> header)
+	 * and bulk mail (<code>Precedence: bulk</code>, <code>junk</code> or <code>list</code>).
+	 */
+	static final class AutoSubmittedFilter implements MessageFilter {
+
+		public void init(Map params) {
+			// No parameter
+		}
+
+		public boolean accept(Message message) throws MessagingException {
+			String[] autoSubmitted = message.getHeader("Auto-Submitted");
+			if (autoSubmitted != null) {
+				for (int i = 0; i < autoSubmitted.length; i++) {
+					if (!"no".equalsIgnoreCase(autoSubmitted[i].trim())) {
+						log.info("Ignoring automatic message (Auto-Submitted: " + autoSubmitted[i] + ")");
+						return false;
+					}
+				}
+			}
+			String[] precedence = message.getHeader("Precedence");
+			if (precedence != null) {
+				for (int i = 0; i < precedence.length; i++) {
+					String value = precedence[i].trim();
+					if ("bulk".equalsIgnoreCase(value) || "junk".equalsIgnoreCase(value)
+							|| "list".equalsIgnoreCase(value)) {
+						log.info("Ignoring bulk message (Precedence: " + value + ")");
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Rejects the messages not addressed to any of the JIRA addresses of the
+	 * handler.
+	 */
+	static final class RecipientFilter implements MessageFilter {
+
+		private final RecipientRouter router;
+
+		RecipientFilter(RecipientRouter router) {
+			this.router = router;
+		}
+
+		public void init(Map params) {
+			// Built by the handler
+		}
+
+		public boolean accept(Message message) throws MessagingException {
+			if (router.route(message) == null) {
+				log.info("Ignoring message not addressed to a JIRA address");
+				return false;
+			}
+			return true;
+		}
+	}
+}
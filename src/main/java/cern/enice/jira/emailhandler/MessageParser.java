@@ -11,15 +11,11 @@ import java.text.SimpleDateFormat;
 import java.text.ParseException;
 import java.security.InvalidParameterException;
 import java.sql.Timestamp;
-import java.util.Collection;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import com.atlassian.core.util.DateUtils;
 import com.atlassian.core.util.InvalidDurationException;
-import com.atlassian.jira.ComponentManager;
-import com.atlassian.jira.config.ConstantsManager;
 import com.atlassian.jira.issue.IssueFieldConstants;
-import com.atlassian.jira.issue.priority.Priority;
 
 /**
  * A class containing some useful method to parse a message.
@@ -33,6 +29,12 @@ public class MessageParser {
 	/** Regex for "any number of characters, even zero". */
 	public static final String REGEX_ANYCHAR = ".*";
 
+	/** Separator of the subject tokens. */
+	private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s");
+
+	/** An estimate made of digits only is expressed in seconds. */
+	private static final Pattern ESTIMATE_PATTERN = Pattern.compile("^\\d*$");
+
 	
 	/**
 	 * Parses a message that contains directives about an issue.
@@ -42,28 +44,36 @@ public class MessageParser {
 	 * @return  a descriptor of the issue, following the directives extracted from <code>message</code>
 	 */
 	public final static IssueDescriptor parse(final Message message, final String[] emailAddresses) {
+		RecipientRouter router = new RecipientRouter();
+		for (int i = 0; i < emailAddresses.length; i++) {
+			router.addJiraAddress(emailAddresses[i]);
+		}
+		return parse(message, router);
+	}
+
+
+	/**
+	 * Parses a message that contains directives about an issue.
+	 * 
+	 * @param message  the message to parse
+	 * @param router  the routing table of the JIRA email addresses
+	 * @return  a descriptor of the issue, following the directives extracted from <code>message</code>
+	 */
+	public final static IssueDescriptor parse(final Message message, final RecipientRouter router) {
 		IssueDescriptorImpl issue = new IssueDescriptorImpl();
-		String toHeader = null;
 		try {
-			projectkey:
-				for (int i = 0; i < emailAddresses.length; i++) {
-					if (emailAddresses[i] == null) continue;
-					toHeader = getRecipientFromMessage(emailAddressToRegex(emailAddresses[i]), message);
-					if (toHeader != null) {
-						issue.setProjectKey(getFullnameFromHeader(emailAddresses[i], toHeader));
-						break projectkey;
-					}
-				}
+			RecipientRouter.Recipient recipient = router.route(message);
 			// Project key has been recorded in the issue.
 			// Note that at this time the project key may also be invalid, 
 			// but may be overridden if a tag Settings.REGEX_PROJECTKEY
 			// is found in the message subject.
-			if (toHeader == null) {
+			if (recipient == null) {
 				// This should never happen as in this case Jira is supposed 
 				// not having received the message
 				log.error("Jira email address not found amongst recipients.");
 				return issue;				
 			}
+			issue.setProjectKey(recipient.getProjectKey());
 		} catch (MessagingException e) {
 			log.error("Error while parsing the message: ", e);
 			return issue;
@@ -81,85 +91,82 @@ public class MessageParser {
     /**
      * Extracts issue attributes from the email <code>subject</code> and assign them to 
      * <code>issue</code>.
+     * Every token is classified in a single pass by the {@link SubjectTagScanner}.
      */
 	private final static void parseSubject(final String subject, final IssueDescriptorImpl issueDescriptor) {
-		String summary = new String("");
-        
         if(subject == null){
             // The subject is null, nothign to parse here !
             issueDescriptor.setSummary(Settings.DEFAULT_SUMMARY);
             return;
         }
         
-    	String[] tokens = subject.split("\\s");
-    	
-    	String estimateString;
-    	Pattern estimatePattern = Pattern.compile("^\\d*$");;
-    	Matcher estimateMatcher;
+    	String[] tokens = WHITESPACE_PATTERN.split(subject);
+    	StringBuilder summary = new StringBuilder(subject.length());
+    	SubjectTagScanner scanner = SubjectTagScanner.getInstance();
     	
     	for (int i = 0; i < tokens.length; i++) {
-    		// Check if token matches possible tags.
-    		// Issue Type and Priority checks are in increasing importance
-    		if (tokens[i].matches(Settings.REGEX_ISSUETYPE_IMPROVEMENT)) {
-    			issueDescriptor.setIssueType("4");        			
+    		String token = tokens[i];
+    		SubjectTagScanner.Tag tag = scanner.match(token);
+    		if (tag == null) {   // Token is not a tag, then add it to the summary text 
+    			summary.append(token).append(' ');
+    			continue;
     		}
-    		else if (tokens[i].matches(Settings.REGEX_ISSUETYPE_SUBTASK)) {
-    			issueDescriptor.setIssueType("5");        			
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_ISSUETYPE_TASK)) {
-    			issueDescriptor.setIssueType("3");        			
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_ISSUETYPE_NEW_FEATURE)) {
-    			issueDescriptor.setIssueType("2");        			
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_ISSUETYPE_BUG)) {
+    		switch (tag) {
+    		case ISSUETYPE_IMPROVEMENT:
+    			issueDescriptor.setIssueType("4");
+    			break;
+    		case ISSUETYPE_SUBTASK:
+    			issueDescriptor.setIssueType("5");
+    			break;
+    		case ISSUETYPE_TASK:
+    			issueDescriptor.setIssueType("3");
+    			break;
+    		case ISSUETYPE_NEW_FEATURE:
+    			issueDescriptor.setIssueType("2");
+    			break;
+    		case ISSUETYPE_BUG:
     			issueDescriptor.setIssueType("1");
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_PRIORITY_TRIVIAL)) {
+    			break;
+    		case PRIORITY_TRIVIAL:
     			setPriorityIdForName(issueDescriptor, IssueFieldConstants.TRIVIAL_PRIORITY);
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_PRIORITY_MINOR)) {
+    			break;
+    		case PRIORITY_MINOR:
     			setPriorityIdForName(issueDescriptor, IssueFieldConstants.MINOR_PRIORITY);
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_PRIORITY_MAJOR)) {
+    			break;
+    		case PRIORITY_MAJOR:
     			setPriorityIdForName(issueDescriptor, IssueFieldConstants.MAJOR_PRIORITY);
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_PRIORITY_CRITICAL)) {
+    			break;
+    		case PRIORITY_CRITICAL:
     			setPriorityIdForName(issueDescriptor, IssueFieldConstants.CRITICAL_PRIORITY);
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_PRIORITY_BLOCKER)) {
+    			break;
+    		case PRIORITY_BLOCKER:
     			setPriorityIdForName(issueDescriptor, IssueFieldConstants.BLOCKER_PRIORITY);
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_COMPONENT + MessageParser.REGEX_ANYCHAR)) {
-    			String manyComponents = tokens[i].replaceFirst(Settings.REGEX_COMPONENT, "");
-    			String[] components = manyComponents.split(",");
-    			for (int j = 0; j < components.length; j++) {
-    				components[j] = components[j].replaceAll("__", " ");    				
-    			}
-    	    	issueDescriptor.setComponents(components);
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_PROJECTKEY + MessageParser.REGEX_ANYCHAR)) {
-    			issueDescriptor.setProjectKey(tokens[i].replaceFirst(Settings.REGEX_PROJECTKEY, ""));
+    			break;
+    		case COMPONENT:
+    			// "__" for spaces is resolved by ProjectComponentIndex
+    	    	issueDescriptor.setComponents(tag.getValue(token).split(","));
+    	    	break;
+    		case PROJECTKEY:
     			// overrides project key set in recipient email address
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_REPORTER + MessageParser.REGEX_ANYCHAR)) {
-    			issueDescriptor.setReporter(tokens[i].replaceFirst(Settings.REGEX_REPORTER, ""));
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_ASSIGNEE + MessageParser.REGEX_ANYCHAR)) {
-    			issueDescriptor.setAssignee(tokens[i].replaceFirst(Settings.REGEX_ASSIGNEE, ""));
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_DUEDATE + MessageParser.REGEX_ANYCHAR)) {
+    			issueDescriptor.setProjectKey(tag.getValue(token));
+    			break;
+    		case REPORTER:
+    			issueDescriptor.setReporter(tag.getValue(token));
+    			break;
+    		case ASSIGNEE:
+    			issueDescriptor.setAssignee(tag.getValue(token));
+    			break;
+    		case DUEDATE:
     			try {
-    				issueDescriptor.setDueDate(new Timestamp(new SimpleDateFormat("yyyy-MM-dd").parse(tokens[i].replaceFirst(Settings.REGEX_DUEDATE, "")).getTime()));
+    				issueDescriptor.setDueDate(new Timestamp(new SimpleDateFormat("yyyy-MM-dd").parse(tag.getValue(token)).getTime()));
     			}
     			catch (ParseException e)
     			{
     			}
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_ESTIMATE + MessageParser.REGEX_ANYCHAR)) {
-    			estimateString = tokens[i].replaceFirst(Settings.REGEX_ESTIMATE, "");
-    			estimateMatcher = estimatePattern.matcher(estimateString);
-    			if (estimateMatcher.matches()) {
+    			break;
+    		case ESTIMATE:
+    			String estimateString = tag.getValue(token);
+    			if (ESTIMATE_PATTERN.matcher(estimateString).matches()) {
     				issueDescriptor.setOriginalEstimate(new Long(estimateString));
     			}
     			else {
@@ -169,26 +176,23 @@ public class MessageParser {
     				catch (InvalidDurationException e) {
     				}
     			}
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_WORKFLOW_TARGET + MessageParser.REGEX_ANYCHAR)) {
-    			issueDescriptor.setWorkflowTarget(tokens[i].replaceFirst(Settings.REGEX_WORKFLOW_TARGET, ""));
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_WORKFLOW_RESOLVE)) {
+    			break;
+    		case WORKFLOW_TARGET:
+    			issueDescriptor.setWorkflowTarget(tag.getValue(token));
+    			break;
+    		case WORKFLOW_RESOLVE:
     			issueDescriptor.setWorkflowTarget("Resolve Issue");
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_WORKFLOW_CLOSE)) {
+    			break;
+    		case WORKFLOW_CLOSE:
     			issueDescriptor.setWorkflowTarget("Close Issue");
-    		}
-    		else if (tokens[i].matches(Settings.REGEX_WORKFLOW_RESOLUTION + MessageParser.REGEX_ANYCHAR)) {
-    			issueDescriptor.setResolution(tokens[i].replaceFirst(Settings.REGEX_WORKFLOW_RESOLUTION, ""));
-    		}
-    		
-    		else {   // Token is not a tag, then add it to the summary text 
-    			summary += (tokens[i] + " ");
+    			break;
+    		case WORKFLOW_RESOLUTION:
+    			issueDescriptor.setResolution(tag.getValue(token));
+    			break;
     		}
     	}
-    	summary = summary.trim();
-    	issueDescriptor.setSummary(summary.equals("") ? Settings.DEFAULT_SUMMARY : summary);
+    	String trimmed = summary.toString().trim();
+    	issueDescriptor.setSummary(trimmed.equals("") ? Settings.DEFAULT_SUMMARY : trimmed);
     }
 
 
@@ -198,21 +202,14 @@ public class MessageParser {
 	 * Prior to JMH-16, the priority value was used to estimate an approximate priority level.
 	 * We now look up the exact priority name (just a bit more accurate, especially when
 	 * JIRA administrators define multiple levels of custom priorities).
+	 * Priority names are resolved through the {@link ConstantsCache}.
 	 * 
 	 * @param issueDescriptor
 	 * @param priorityValue
 	 */
 	private static void setPriorityIdForName(IssueDescriptorImpl issueDescriptor,String priorityValue) {
 		try{
-			ConstantsManager cmr = ComponentManager.getInstance()
-			.getConstantsManager();
-			String priorityId = null;
-			Collection<Priority> priorities = cmr.getPriorityObjects();
-			for (Priority priority : priorities) {
-				if(priority.getName().equalsIgnoreCase(priorityValue)){
-					priorityId = priority.getId();
-				}
-			}
+			String priorityId = ConstantsCache.getInstance().getPriorityId(priorityValue);
 			if(priorityId == null){
 				throw new IllegalArgumentException("Could not identify the JIRA Priority ID for priority name '"+priorityValue+"'");
 			}
@@ -236,9 +233,9 @@ public class MessageParser {
      */
     public final static String getRecipientFromMessage(final String recipientRegExp, final Message message) throws MessagingException {
     	Address[] addresses = message.getAllRecipients();
+    	Pattern p = Pattern.compile(recipientRegExp, Pattern.CASE_INSENSITIVE);
     	for (int i = 0; i < addresses.length; i++) {
     		log.debug("Parsing message address " + i + ": " + addresses[i]);
-    		Pattern p = Pattern.compile(recipientRegExp, Pattern.CASE_INSENSITIVE);
     		Matcher m = p.matcher(addresses[i].toString());
     		if (m.find()) {
     			return addresses[i].toString(); 
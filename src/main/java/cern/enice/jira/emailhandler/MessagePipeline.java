@@ -0,0 +1,691 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.jira.util.thread.JiraThreadLocalUtils;
+
+/**
+ * Optional concurrent processing of the messages of an
+ * {@link AdvancedCreateOrCommentHandler}. A message goes through four
+ * stages - parse, resolve, persist and transition - each one served by its
+ * own workers and fed by bounded queues, so that messages touching
+ * different issues proceed in parallel. When a queue is full, the thread
+ * handing a message over waits, which slows the mail service down instead
+ * of exhausting the memory.
+ * <p>
+ * Messages touching the same issue are applied in arrival order: once
+ * resolved, messages are released to the persist stage in the order they
+ * were submitted, and the persist and transition stages are made of
+ * single-threaded lanes, the lane of a message being chosen by its issue
+ * key. Messages creating issues are spread over the lanes. A reply whose
+ * subject references no issue is looked up in its thread only once the
+ * messages submitted before it are persisted, as one of them may create
+ * or comment the issue of the thread; the messages submitted after it wait
+ * meanwhile.
+ * <p>
+ * Messages are processed from an in-memory copy, but stay in the mailbox
+ * until their persist stage succeeded: the handler keeps a message while it
+ * is in the pipeline, and lets the mail service delete it when the message
+ * is read again, at a later poll, once persisted. A message which failed is
+ * processed again when read again, and the messages lost with the pipeline
+ * (e.g. when the plugin stops) are still in the mailbox. The claim of a
+ * message in the {@link IdempotencyStore} goes along with its copy, and is
+ * committed or released once the copy left the pipeline, so that the other
+ * copies of a message delivered twice are kept meanwhile.
+ * <p>
+ * Pipelines are shared by the handlers having the same configuration, as
+ * the mail service may instantiate its handler several times, and are shut
+ * down with the plugin. Idle workers time out.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class MessagePipeline {
+
+	private static final Logger log = Logger.getLogger(MessagePipeline.class);
+
+	/** Default capacity of the queues in front of each stage. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 100;
+
+	/** Default number of workers per stage. */
+	public static final int DEFAULT_THREADS = 2;
+
+	/** Idle time after which a worker stops, in seconds. */
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	/** The statistics are logged every so many messages. */
+	private static final int STATISTICS_INTERVAL = 100;
+
+	/** Maximum number of messages whose outcome is kept until they are read again. */
+	private static final int MAX_TRACKED = 10000;
+
+	private static final Map<String, MessagePipeline> pipelines = new ConcurrentHashMap<String, MessagePipeline>();
+
+	/**
+	 * A processing stage, along with its statistics. The workers of an
+	 * unkeyed stage share one bounded queue; a keyed stage is made of
+	 * single-threaded lanes with a bounded queue each, so that the tasks
+	 * having the same key run one after the other, in submission order.
+	 */
+	public static final class Stage {
+		private final String name;
+		private final ThreadPoolExecutor[] executors;
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong totalLatencyNanos = new AtomicLong();
+		private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+		Stage(String name, int threads, int queueCapacity, boolean keyed) {
+			this.name = name;
+			if (keyed) {
+				executors = new ThreadPoolExecutor[threads];
+				for (int i = 0; i < threads; i++) {
+					executors[i] = newExecutor(name + "-" + (i + 1), 1, Math.max(1, queueCapacity / threads));
+				}
+			} else {
+				executors = new ThreadPoolExecutor[] { newExecutor(name, threads, queueCapacity) };
+			}
+		}
+
+		private ThreadPoolExecutor newExecutor(final String threadName, int threads, int queueCapacity) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "emailhandler-" + threadName + "-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, new RejectedExecutionHandler() {
+						public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+							// Queue full: wait for room rather than dropping the message
+							if (executor.isShutdown()) {
+								throw new RejectedExecutionException("Stage " + name + " is shut down");
+							}
+							try {
+								executor.getQueue().put(runnable);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new RejectedExecutionException("Interrupted while queuing to stage " + name);
+							}
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			return executor;
+		}
+
+		/**
+		 * Queues a task, waiting for room in the queue if needed. The latency
+		 * of the stage is measured from now to the end of the task.
+		 *
+		 * @param key  the tasks having the same key run in submission order on a keyed stage
+		 * @param task  the task
+		 */
+		void execute(int key, final Runnable task) {
+			final long queuedAt = System.nanoTime();
+			executors[(key & 0x7fffffff) % executors.length].execute(new Runnable() {
+				public void run() {
+					// Sets up the thread like a request or service thread of JIRA
+					JiraThreadLocalUtils.preCall();
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						failed.incrementAndGet();
+						log.error("Stage " + name + " failed to process a message", e);
+					} finally {
+						JiraThreadLocalUtils.postCall(log, null);
+						record(System.nanoTime() - queuedAt);
+					}
+				}
+			});
+		}
+
+		private void record(long latencyNanos) {
+			processed.incrementAndGet();
+			totalLatencyNanos.addAndGet(latencyNanos);
+			long max = maxLatencyNanos.get();
+			while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+				max = maxLatencyNanos.get();
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the number of messages waiting for this stage
+		 */
+		public int getQueueDepth() {
+			int depth = 0;
+			for (int i = 0; i < executors.length; i++) {
+				depth += executors[i].getQueue().size();
+			}
+			return depth;
+		}
+
+		/**
+		 * @return the number of messages being processed by this stage
+		 */
+		public int getActiveCount() {
+			int active = 0;
+			for (int i = 0; i < executors.length; i++) {
+				active += executors[i].getActiveCount();
+			}
+			return active;
+		}
+
+		/**
+		 * @return the number of messages this stage processed
+		 */
+		public long getProcessed() {
+			return processed.get();
+		}
+
+		/**
+		 * @return the number of messages this stage failed to process
+		 */
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * @return the average time a message spent in this stage, queue included, in milliseconds
+		 */
+		public long getAverageLatencyMillis() {
+			long count = processed.get();
+			return (count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / count));
+		}
+
+		/**
+		 * @return the longest time a message spent in this stage, queue included, in milliseconds
+		 */
+		public long getMaxLatencyMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+		}
+
+		void shutdown() {
+			for (int i = 0; i < executors.length; i++) {
+				executors[i].shutdown();
+			}
+		}
+
+		public String toString() {
+			return name + "[queued=" + getQueueDepth() + ", active=" + getActiveCount()
+					+ ", processed=" + getProcessed() + ", failed=" + getFailed()
+					+ ", avgLatencyMs=" + getAverageLatencyMillis()
+					+ ", maxLatencyMs=" + getMaxLatencyMillis() + "]";
+		}
+	}
+
+	private final Stage parse;
+	private final Stage resolve;
+	private final Stage persist;
+	private final Stage transition;
+	private final List<Stage> stages;
+	private final AtomicLong submitted = new AtomicLong();
+
+	/*
+	 * Release of the resolved messages to the persist stage in submission
+	 * order: messages wait in "resolved" until all the messages submitted
+	 * before them are resolved or dropped.
+	 */
+	private final Object sequenceLock = new Object();
+	private long nextSequence = 0;
+	private long nextRelease = 0;
+	private final Map<Long, MessageWorkItem> resolved = new HashMap<Long, MessageWorkItem>();
+	/** Messages released in order, waiting to be queued to the persist stage. */
+	private final Queue<MessageWorkItem> released = new LinkedList<MessageWorkItem>();
+	/** Whether a thread is queuing the released messages. */
+	private boolean releasing = false;
+
+	/*
+	 * The messages whose persist stage is over, or which were dropped
+	 * before it: all those submitted before "persistedThrough", and those
+	 * in "persistedAhead".
+	 */
+	private final Object persistLock = new Object();
+	private long persistedThrough = 0;
+	private final Set<Long> persistedAhead = new HashSet<Long>();
+
+	/**
+	 * The outcome of handing a message over to the pipeline.
+	 */
+	enum Outcome {
+		/** The message was persisted, it can be deleted from the mailbox. */
+		PROCESSED,
+		/** The message is being processed, it must be kept in the mailbox. */
+		PENDING,
+		/** The message could not be processed, it must be kept in the mailbox. */
+		FAILED,
+		/** The message cannot be copied, it must be processed synchronously. */
+		SYNCHRONOUS
+	}
+
+	/** The messages handed over, by key (see {@link MessageWorkItem#getKey}), until they are read again. */
+	private final Map<String, MessageWorkItem> tracked = new LinkedHashMap<String, MessageWorkItem>() {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, MessageWorkItem> eldest) {
+			return size() > MAX_TRACKED;
+		}
+	};
+
+	MessagePipeline(int parseThreads, int resolveThreads, int persistThreads,
+			int transitionThreads, int queueCapacity) {
+		parse = new Stage("parse", parseThreads, queueCapacity, false);
+		resolve = new Stage("resolve", resolveThreads, queueCapacity, false);
+		persist = new Stage("persist", persistThreads, queueCapacity, true);
+		transition = new Stage("transition", transitionThreads, queueCapacity, true);
+		List<Stage> ordered = new ArrayList<Stage>();
+		ordered.add(parse);
+		ordered.add(resolve);
+		ordered.add(persist);
+		ordered.add(transition);
+		stages = Collections.unmodifiableList(ordered);
+	}
+
+	/**
+	 * Returns the pipeline of a handler configuration, creating it if needed.
+	 *
+	 * @param params  the parameters of the handler
+	 * @return  the pipeline shared by the handlers configured with <code>params</code>
+	 */
+	static synchronized MessagePipeline getPipeline(Map params, int parseThreads, int resolveThreads,
+			int persistThreads, int transitionThreads, int queueCapacity) {
+		String configuration = new TreeMap(params).toString();
+		MessagePipeline pipeline = pipelines.get(configuration);
+		if (pipeline == null) {
+			pipeline = new MessagePipeline(parseThreads, resolveThreads, persistThreads,
+					transitionThreads, queueCapacity);
+			pipelines.put(configuration, pipeline);
+			log.info("Started message pipeline " + pipeline);
+		}
+		return pipeline;
+	}
+
+	/**
+	 * Stops all the pipelines; the messages already queued are still processed.
+	 */
+	static synchronized void shutdownAll() {
+		for (MessagePipeline pipeline : pipelines.values()) {
+			pipeline.shutdown();
+		}
+		pipelines.clear();
+	}
+
+	/**
+	 * Hands a message read from the mailbox over to the pipeline, or, if it
+	 * was handed over at an earlier poll, tells what became of it. A message
+	 * which failed is not handed over again by this call, but by the next one.
+	 *
+	 * @param handler  the handler whose stages are run
+	 * @param work  a message read from the mailbox
+	 * @return  the outcome
+	 * @throws MessagingException
+	 */
+	Outcome offer(AdvancedCreateOrCommentHandler handler, MessageWorkItem work) throws MessagingException {
+		String key = MessageWorkItem.getKey(work.getMessage());
+		synchronized (tracked) {
+			MessageWorkItem earlier = tracked.get(key);
+			if (earlier != null) {
+				if (!earlier.isFinished()) {
+					return Outcome.PENDING;
+				}
+				tracked.remove(key);
+				return (earlier.getResult() ? Outcome.PROCESSED : Outcome.FAILED);
+			}
+		}
+		MessageWorkItem detached = detach(work);
+		if (detached == null) {
+			return Outcome.SYNCHRONOUS;
+		}
+		synchronized (tracked) {
+			if (tracked.containsKey(key)) {
+				// Another copy was handed over meanwhile
+				return Outcome.PENDING;
+			}
+			tracked.put(key, detached);
+		}
+		try {
+			submit(handler, detached);
+		} catch (RejectedExecutionException e) {
+			synchronized (tracked) {
+				tracked.remove(key);
+			}
+			log.warn("Pipeline not available, processing the message synchronously", e);
+			return Outcome.SYNCHRONOUS;
+		}
+		// Settled by the copy, even if it finished already
+		work.transferClaim(detached);
+		return Outcome.PENDING;
+	}
+
+	/**
+	 * @param message  a message read from the mailbox
+	 * @return  whether the message was handed over to the pipeline and not read again since
+	 * @throws MessagingException
+	 */
+	boolean isTracked(Message message) throws MessagingException {
+		String key = MessageWorkItem.getKey(message);
+		synchronized (tracked) {
+			return tracked.containsKey(key);
+		}
+	}
+
+	/**
+	 * Copies a message in memory, so that it can be processed by the stage
+	 * workers while the mail service reads the next messages.
+	 *
+	 * @param work  a message read from the mailbox
+	 * @return  an item holding a copy of the message, or <code>null</code>
+	 * if the message cannot be copied and must be processed synchronously
+	 */
+	private MessageWorkItem detach(MessageWorkItem work) {
+		Message message = work.getMessage();
+		if (!(message instanceof MimeMessage)) {
+			return null;
+		}
+		try {
+			MessageWorkItem detached = new MessageWorkItem(new MimeMessage((MimeMessage) message), work.getContext());
+			// What the filter chain resolved
+			detached.setFromEmail(work.getFromEmail());
+			if (work.isSenderResolved()) {
+				detached.setSender(work.getSender());
+			}
+			return detached;
+		} catch (MessagingException e) {
+			log.warn("Could not copy the message, processing it synchronously", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Hands a detached message over to the pipeline. Messages must be
+	 * submitted in arrival order.
+	 *
+	 * @param handler  the handler whose stages are run
+	 * @param work  the detached message
+	 */
+	private void submit(final AdvancedCreateOrCommentHandler handler, final MessageWorkItem work) {
+		synchronized (sequenceLock) {
+			work.setSequence(nextSequence++);
+		}
+		try {
+			parse.execute(0, new Runnable() {
+				public void run() {
+					boolean handedOver = false;
+					try {
+						if (runStage(parse, handler, work)) {
+							if (work.getIssue() == null && isReply(work.getMessage())) {
+								// Looked up once the earlier messages are persisted
+								work.setThreadLookupDeferred(true);
+							}
+							resolve.execute(0, new Runnable() {
+								public void run() {
+									try {
+										runStage(resolve, handler, work);
+									} finally {
+										release(handler, work);
+									}
+								}
+							});
+							handedOver = true;
+						}
+					} finally {
+						if (!handedOver) {
+							// Parsed to completion, or the hand-off failed
+							if (!work.isCompleted()) {
+								log.error("Could not queue message to stage " + resolve.getName());
+								work.complete(false);
+							}
+							release(handler, work);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The sequence number must still be released
+			work.complete(false);
+			release(handler, work);
+			throw e;
+		}
+		if (submitted.incrementAndGet() % STATISTICS_INTERVAL == 0) {
+			log.info("Message pipeline statistics: " + this);
+		}
+	}
+
+	/**
+	 * Records that a message is resolved or dropped, and queues to the
+	 * persist stage, in submission order, the resolved messages no longer
+	 * waiting for a message submitted before them.
+	 * <p>
+	 * Queuing may wait for room in a lane, so it happens outside the
+	 * sequence lock: the messages are moved to "released" under the lock,
+	 * and queued by one thread at a time, so that the lanes receive them in
+	 * that order.
+	 */
+	private void release(AdvancedCreateOrCommentHandler handler, MessageWorkItem work) {
+		synchronized (sequenceLock) {
+			resolved.put(Long.valueOf(work.getSequence()), work);
+			MessageWorkItem next;
+			while ((next = resolved.remove(Long.valueOf(nextRelease))) != null) {
+				nextRelease++;
+				released.add(next);
+			}
+			if (releasing) {
+				// The thread queuing the released messages will queue these too
+				return;
+			}
+			releasing = true;
+		}
+		while (true) {
+			MessageWorkItem next;
+			synchronized (sequenceLock) {
+				next = released.poll();
+				if (next == null) {
+					releasing = false;
+					return;
+				}
+			}
+			try {
+				if (!next.isCompleted() && next.isThreadLookupDeferred()) {
+					resolveThread(handler, next);
+				}
+				if (!next.isCompleted()) {
+					queuePersist(handler, next);
+				} else {
+					persisted(next);
+					next.finish();
+				}
+			} catch (RuntimeException e) {
+				log.error("Could not queue message to stage " + persist.getName(), e);
+				next.complete(false);
+				persisted(next);
+				next.finish();
+			}
+		}
+	}
+
+	/**
+	 * Finds the issue of the thread of a reply once the messages submitted
+	 * before it are persisted, so that the issues they created or commented
+	 * are recorded.
+	 */
+	private void resolveThread(AdvancedCreateOrCommentHandler handler, MessageWorkItem work) {
+		awaitPersisted(work.getSequence());
+		try {
+			handler.resolveThread(work);
+		} catch (MessagingException e) {
+			log.error("Could not find the thread of message", e);
+			work.complete(false);
+		}
+	}
+
+	/**
+	 * Records that the persist stage of a message is over, or that the
+	 * message was dropped before it.
+	 */
+	private void persisted(MessageWorkItem work) {
+		synchronized (persistLock) {
+			persistedAhead.add(Long.valueOf(work.getSequence()));
+			while (persistedAhead.remove(Long.valueOf(persistedThrough))) {
+				persistedThrough++;
+			}
+			persistLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until the messages submitted before <code>sequence</code> are persisted.
+	 */
+	private void awaitPersisted(long sequence) {
+		synchronized (persistLock) {
+			while (persistedThrough < sequence) {
+				try {
+					persistLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					log.warn("Interrupted while waiting for the messages before message " + sequence);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return whether the message replies to another one
+	 */
+	private static boolean isReply(Message message) {
+		try {
+			return message.getHeader("In-Reply-To") != null || message.getHeader("References") != null;
+		} catch (MessagingException e) {
+			return true;
+		}
+	}
+
+	private void queuePersist(final AdvancedCreateOrCommentHandler handler, final MessageWorkItem work) {
+		final int lane = getLane(work);
+		persist.execute(lane, new Runnable() {
+			public void run() {
+				boolean persisted = false;
+				try {
+					persisted = runStage(persist, handler, work);
+				} finally {
+					// Whatever the outcome, the replies waiting for it may go on
+					persisted(work);
+				}
+				if (!persisted) {
+					work.finish();
+					return;
+				}
+				try {
+					transition.execute(lane, new Runnable() {
+						public void run() {
+							try {
+								runStage(transition, handler, work);
+							} finally {
+								work.finish();
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Persisted already
+					log.error("Could not queue the transition of message to issue " + work.getIssueKey(), e);
+					work.finish();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the lane of the messages touching the issue of <code>work</code>
+	 */
+	private static int getLane(MessageWorkItem work) {
+		String issueKey = work.getIssueKey();
+		return (issueKey != null ? issueKey.hashCode() : (int) work.getSequence());
+	}
+
+	/**
+	 * @return whether the message must go on to the next stage
+	 */
+	private boolean runStage(Stage stage, AdvancedCreateOrCommentHandler handler, MessageWorkItem work) {
+		try {
+			if (stage == parse) {
+				handler.parseStage(work);
+			} else if (stage == resolve) {
+				handler.resolveStage(work);
+			} else if (stage == persist) {
+				handler.persistStage(work);
+			} else {
+				handler.transitionStage(work);
+			}
+		} catch (MessagingException e) {
+			log.error("Could not process message in stage " + stage.getName(), e);
+			work.complete(false);
+		} catch (RuntimeException e) {
+			log.error("Could not process message in stage " + stage.getName(), e);
+			work.complete(false);
+		}
+		return !work.isCompleted();
+	}
+
+	/**
+	 * @return the stages, in processing order
+	 */
+	public List<Stage> getStages() {
+		return stages;
+	}
+
+	/**
+	 * @return the number of messages handed over to this pipeline
+	 */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return the number of resolved messages waiting for a message submitted before them
+	 */
+	public int getReorderDepth() {
+		synchronized (sequenceLock) {
+			return resolved.size();
+		}
+	}
+
+	void shutdown() {
+		for (Stage stage : stages) {
+			stage.shutdown();
+		}
+	}
+
+	public String toString() {
+		return "MessagePipeline[submitted=" + getSubmitted() + ", reorder=" + getReorderDepth()
+				+ ", " + stages + "]";
+	}
+}
@@ -0,0 +1,208 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.jira.service.util.handler.MessageHandlerContext;
+
+/**
+ * The issues recent messages were recorded against, by Message-ID, so
+ * that a reply without issue key in its subject is associated with its
+ * issue without querying the mail threads of JIRA.
+ * <p>
+ * The ids of the messages creating or commenting an issue are recorded by
+ * the handlers (see {@link #putRecorded}). The notifications sent by JIRA
+ * need not be: their Message-ID,
+ * <code>JIRA.&lt;issue id&gt;.&lt;timestamps&gt;@&lt;host&gt;</code>,
+ * holds the id of their issue. Anybody can write such a Message-ID, so it
+ * is only decoded for the hosts of this instance: a host is trusted once
+ * the mail threads of JIRA associated a reply to one of its Message-IDs
+ * with the issue the Message-ID holds (see {@link #putParents}).
+ * <p>
+ * A reply is looked up by the ids of its <code>In-Reply-To</code> header,
+ * then by those of its <code>References</code> header, latest first, so
+ * that a reply to a reply the index does not know still finds the issue
+ * of the thread.
+ * <p>
+ * The index is kept in memory only; after a restart, or for the threads it
+ * evicted, the handlers fall back to the mail threads of JIRA.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class MessageThreadIndex {
+
+	private static final Logger log = Logger.getLogger(MessageThreadIndex.class);
+
+	/** Maximum number of Message-IDs kept. */
+	public static final int MAX_SIZE = 50000;
+
+	private static final MessageThreadIndex INSTANCE = new MessageThreadIndex();
+
+	private static final String IN_REPLY_TO = "In-Reply-To";
+	private static final String REFERENCES = "References";
+	private static final String MESSAGE_ID = "Message-ID";
+
+	/** A Message-ID within angle brackets. */
+	private static final Pattern MESSAGE_ID_PATTERN = Pattern.compile("<([^<>\\s]+)>");
+
+	/** The Message-ID of a notification sent by JIRA. */
+	private static final Pattern JIRA_MESSAGE_ID = Pattern.compile("JIRA\\.(\\d+)\\.[^@]*@(.*)");
+
+	private final BoundedCache<String, Long> issueIds = new BoundedCache<String, Long>(MAX_SIZE, 0);
+	/** The hosts of the notifications of this instance, in lower case. */
+	private final Set<String> trustedHosts = new CopyOnWriteArraySet<String>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong decoded = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private MessageThreadIndex() {
+		// Singleton
+	}
+
+	/**
+	 * @return the index shared by all handlers
+	 */
+	public static MessageThreadIndex getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records the issue of a message.
+	 *
+	 * @param message  a message creating or commenting an issue
+	 * @param issueId  the id of the issue
+	 * @throws MessagingException
+	 */
+	public void put(Message message, Long issueId) throws MessagingException {
+		if (issueId == null) {
+			return;
+		}
+		for (String messageId : getMessageIds(message, MESSAGE_ID)) {
+			issueIds.put(messageId, issueId);
+		}
+	}
+
+	/**
+	 * Records the issue of a message the handler recorded in the mail threads
+	 * of JIRA; called by the <code>recordMessageId</code> methods of the
+	 * handlers, after that of their superclass.
+	 *
+	 * @param message  a message creating or commenting an issue
+	 * @param issueId  the id of the issue
+	 * @param context  the context of the handler; nothing is recorded unless it is a real run
+	 * @throws MessagingException
+	 */
+	public void putRecorded(Message message, Long issueId, MessageHandlerContext context)
+			throws MessagingException {
+		if (context.isRealRun()) {
+			put(message, issueId);
+		}
+	}
+
+	/**
+	 * Records the issue of the messages a reply answers, once the mail
+	 * threads of JIRA found it. The hosts of the JIRA notifications holding
+	 * the id of this issue are trusted from now on.
+	 *
+	 * @param message  a reply
+	 * @param issueId  the id of the issue of the thread
+	 * @throws MessagingException
+	 */
+	public void putParents(Message message, Long issueId) throws MessagingException {
+		if (issueId == null) {
+			return;
+		}
+		for (String messageId : getMessageIds(message, IN_REPLY_TO)) {
+			issueIds.put(messageId, issueId);
+			Matcher matcher = JIRA_MESSAGE_ID.matcher(messageId);
+			if (matcher.matches() && matcher.group(1).equals(issueId.toString())) {
+				String host = matcher.group(2).toLowerCase(Locale.ENGLISH);
+				if (trustedHosts.add(host)) {
+					log.info("Decoding the Message-IDs of the JIRA notifications from " + host);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param message  a message
+	 * @return  the ids of the issues of the messages <code>message</code>
+	 *          replies to, closest first, without duplicates; empty if none
+	 *          is known
+	 * @throws MessagingException
+	 */
+	public List<Long> getIssueIds(Message message) throws MessagingException {
+		List<String> parents = getMessageIds(message, IN_REPLY_TO);
+		List<String> references = getMessageIds(message, REFERENCES);
+		// The closest ancestors are the last references
+		for (int i = references.size() - 1; i >= 0; i--) {
+			parents.add(references.get(i));
+		}
+		Set<Long> result = new LinkedHashSet<Long>();
+		for (String messageId : parents) {
+			Long issueId = getIssueId(messageId);
+			if (issueId != null) {
+				result.add(issueId);
+			}
+		}
+		if (result.isEmpty()) {
+			misses.incrementAndGet();
+		}
+		return new ArrayList<Long>(result);
+	}
+
+	private Long getIssueId(String messageId) {
+		Matcher matcher = JIRA_MESSAGE_ID.matcher(messageId);
+		if (matcher.matches() && trustedHosts.contains(matcher.group(2).toLowerCase(Locale.ENGLISH))) {
+			try {
+				Long issueId = Long.valueOf(matcher.group(1));
+				decoded.incrementAndGet();
+				return issueId;
+			} catch (NumberFormatException e) {
+				log.debug("Not a JIRA notification: " + messageId);
+			}
+		}
+		Long issueId = issueIds.get(messageId);
+		if (issueId != null) {
+			hits.incrementAndGet();
+		}
+		return issueId;
+	}
+
+	/**
+	 * @return  the Message-IDs of the given header of <code>message</code>, without angle brackets
+	 */
+	private static List<String> getMessageIds(Message message, String header) throws MessagingException {
+		List<String> messageIds = new ArrayList<String>();
+		String[] values = message.getHeader(header);
+		if (values == null) {
+			return messageIds;
+		}
+		for (String value : values) {
+			Matcher matcher = MESSAGE_ID_PATTERN.matcher(value);
+			while (matcher.find()) {
+				messageIds.add(matcher.group(1));
+			}
+		}
+		return messageIds;
+	}
+
+	public String toString() {
+		return "MessageThreadIndex[messages=" + issueIds.size() + ", hits=" + hits.get()
+				+ ", decoded=" + decoded.get() + ", misses=" + misses.get()
+				+ ", trustedHosts=" + trustedHosts + "]";
+	}
+}
@@ -0,0 +1,267 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.Arrays;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.ofbiz.core.entity.GenericValue;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.jira.service.util.handler.MessageHandlerContext;
+
+/**
+ * The state of one message going through the processing stages of
+ * {@link AdvancedCreateOrCommentHandler} (parse, resolve, persist and
+ * transition). Each stage reads what the previous ones found; a stage may
+ * complete the item early, e.g. when the sender is not whitelisted.
+ * <p>
+ * An item is handled by one stage at a time, the hand-off between stages
+ * being made through a queue, so it needs no further synchronization; the
+ * result is published to other threads by {@link #finish()}. The claim of
+ * the message in the {@link IdempotencyStore}, which may be handed over to
+ * another thread, is guarded by the item itself.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+final class MessageWorkItem {
+
+	private final Message message;
+	private final MessageHandlerContext context;
+
+	private String subject;
+	private GenericValue issue;
+	private ProcessingContext processingContext;
+	private User sender;
+	private boolean senderResolved = false;
+	private String fromEmail;
+	private boolean threadLookupDeferred = false;
+
+	private boolean result = false;
+	private boolean completed = false;
+	private volatile boolean finished = false;
+
+	/** The claim of the message, settled when the item finishes; guarded by this. */
+	private IdempotencyStore claimStore;
+	private Long claimDigest;
+
+	/** Arrival order of the message, when processed by a {@link MessagePipeline}. */
+	private long sequence;
+
+	MessageWorkItem(Message message, MessageHandlerContext context) {
+		this.message = message;
+		this.context = context;
+	}
+
+	Message getMessage() {
+		return message;
+	}
+
+	MessageHandlerContext getContext() {
+		return context;
+	}
+
+	String getSubject() {
+		return subject;
+	}
+
+	void setSubject(String subject) {
+		this.subject = subject;
+	}
+
+	/**
+	 * @return the issue the message comments, or <code>null</code> if it creates a new one
+	 */
+	GenericValue getIssue() {
+		return issue;
+	}
+
+	void setIssue(GenericValue issue) {
+		this.issue = issue;
+	}
+
+	/**
+	 * @return the key of the issue the message comments, or <code>null</code> if it creates a new one
+	 */
+	String getIssueKey() {
+		return (issue != null ? issue.getString("key") : null);
+	}
+
+	IssueDescriptor getIssueDescriptor() {
+		return processingContext.getIssueDescriptor();
+	}
+
+	/**
+	 * @return the directives parsed from the message, and the entities resolved for it
+	 */
+	ProcessingContext getProcessingContext() {
+		return processingContext;
+	}
+
+	void setProcessingContext(ProcessingContext processingContext) {
+		this.processingContext = processingContext;
+		processingContext.putUser(sender);
+	}
+
+	/**
+	 * @return the JIRA user who sent the message, or <code>null</code> if unknown
+	 */
+	User getSender() {
+		return sender;
+	}
+
+	/**
+	 * @param sender  the JIRA user who sent the message, <code>null</code> if there is none
+	 */
+	void setSender(User sender) {
+		this.sender = sender;
+		this.senderResolved = true;
+		if (processingContext != null) {
+			processingContext.putUser(sender);
+		}
+	}
+
+	/**
+	 * @return whether the sender was looked up already, e.g. by the filter chain
+	 */
+	boolean isSenderResolved() {
+		return senderResolved;
+	}
+
+	/**
+	 * @return whether the resolve stage must leave the lookup of the issue
+	 *         of the thread of the message to the caller
+	 */
+	boolean isThreadLookupDeferred() {
+		return threadLookupDeferred;
+	}
+
+	void setThreadLookupDeferred(boolean threadLookupDeferred) {
+		this.threadLookupDeferred = threadLookupDeferred;
+	}
+
+	String getFromEmail() {
+		return fromEmail;
+	}
+
+	void setFromEmail(String fromEmail) {
+		this.fromEmail = fromEmail;
+	}
+
+	/**
+	 * @return whether the message must be deleted
+	 */
+	boolean getResult() {
+		return result;
+	}
+
+	void setResult(boolean result) {
+		this.result = result;
+	}
+
+	/**
+	 * Ends the processing of the message; the next stages are skipped.
+	 *
+	 * @param result  whether the message must be deleted
+	 */
+	void complete(boolean result) {
+		this.result = result;
+		this.completed = true;
+	}
+
+	boolean isCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Marks the item as having left the last stage it goes through; its
+	 * result is final, and settles the claim of the message, if any.
+	 */
+	synchronized void finish() {
+		settleClaim(result);
+		finished = true;
+	}
+
+	/**
+	 * Records that the message was claimed in <code>store</code>; the claim
+	 * is settled when the item finishes, or right away if it did already.
+	 *
+	 * @param store  the store the message was claimed in
+	 * @param digest  the digest of the message
+	 */
+	synchronized void setClaim(IdempotencyStore store, Long digest) {
+		claimStore = store;
+		claimDigest = digest;
+		if (finished) {
+			settleClaim(result);
+		}
+	}
+
+	/**
+	 * Hands the claim of the message over to a copy processed by another
+	 * thread, which settles it when it finishes.
+	 *
+	 * @param copy  the copy of the message
+	 */
+	void transferClaim(MessageWorkItem copy) {
+		IdempotencyStore store;
+		Long digest;
+		synchronized (this) {
+			store = claimStore;
+			digest = claimDigest;
+			claimStore = null;
+			claimDigest = null;
+		}
+		if (digest != null) {
+			copy.setClaim(store, digest);
+		}
+	}
+
+	/**
+	 * Commits the claim of the message, if it was not handed over or settled
+	 * already, or releases it if the message was not processed.
+	 *
+	 * @param processed  whether the message was processed
+	 */
+	synchronized void settleClaim(boolean processed) {
+		if (claimDigest == null) {
+			return;
+		}
+		if (processed) {
+			claimStore.commit(claimDigest);
+		} else {
+			claimStore.release(claimDigest);
+		}
+		claimStore = null;
+		claimDigest = null;
+	}
+
+	/**
+	 * @return whether the item left the last stage it goes through
+	 */
+	boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @param message  a message
+	 * @return  a key identifying the copies of <code>message</code>: its
+	 *          Message-ID, or its sender, subject and date if it has none
+	 * @throws MessagingException
+	 */
+	static String getKey(Message message) throws MessagingException {
+		String[] messageIds = message.getHeader("Message-ID");
+		if (messageIds != null && messageIds.length > 0 && messageIds[0].trim().length() > 0) {
+			return messageIds[0].trim();
+		}
+		return Arrays.toString(message.getFrom()) + "|" + message.getSubject() + "|" + message.getSentDate();
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+}
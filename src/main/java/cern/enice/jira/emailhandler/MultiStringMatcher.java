@@ -0,0 +1,127 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton telling whether a text contains any of a set of
+ * strings, in a single pass over the text whatever the number of strings.
+ * It is equivalent to calling {@link String#indexOf(String)} with each of
+ * the strings, e.g. an empty string is contained in any text.
+ * <p>
+ * The automaton is immutable once built and may be shared between threads.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+final class MultiStringMatcher {
+
+	/** Sorted labels of the transitions leaving each state. */
+	private final char[][] labels;
+	/** Targets of the transitions leaving each state, in the order of the labels. */
+	private final int[][] targets;
+	/** State reached from each state on the longest proper suffix in the automaton. */
+	private final int[] failures;
+	/** Whether one of the strings ends at each state, or at one of its failure states. */
+	private final boolean[] terminals;
+
+	/**
+	 * @param strings  the strings to look for
+	 */
+	MultiStringMatcher(Collection<String> strings) {
+		// Trie of the strings
+		List<TreeMap<Character, Integer>> gotos = new ArrayList<TreeMap<Character, Integer>>();
+		List<Boolean> ends = new ArrayList<Boolean>();
+		gotos.add(new TreeMap<Character, Integer>());
+		ends.add(Boolean.FALSE);
+		for (String string : strings) {
+			int state = 0;
+			for (int i = 0; i < string.length(); i++) {
+				Character c = Character.valueOf(string.charAt(i));
+				Integer next = gotos.get(state).get(c);
+				if (next == null) {
+					next = Integer.valueOf(gotos.size());
+					gotos.add(new TreeMap<Character, Integer>());
+					ends.add(Boolean.FALSE);
+					gotos.get(state).put(c, next);
+				}
+				state = next.intValue();
+			}
+			ends.set(state, Boolean.TRUE);
+		}
+
+		int size = gotos.size();
+		labels = new char[size][];
+		targets = new int[size][];
+		failures = new int[size];
+		terminals = new boolean[size];
+		for (int state = 0; state < size; state++) {
+			Map<Character, Integer> transitions = gotos.get(state);
+			labels[state] = new char[transitions.size()];
+			targets[state] = new int[transitions.size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+				labels[state][i] = transition.getKey().charValue();
+				targets[state][i] = transition.getValue().intValue();
+				i++;
+			}
+			terminals[state] = ends.get(state).booleanValue();
+		}
+
+		// Failure links, breadth first so that shorter suffixes are done first
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int i = 0; i < targets[0].length; i++) {
+			failures[targets[0][i]] = 0;
+			queue.add(Integer.valueOf(targets[0][i]));
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.removeFirst().intValue();
+			for (int i = 0; i < labels[state].length; i++) {
+				int child = targets[state][i];
+				int failure = failures[state];
+				int next;
+				while ((next = next(failure, labels[state][i])) < 0 && failure != 0) {
+					failure = failures[failure];
+				}
+				failures[child] = (next >= 0 ? next : 0);
+				terminals[child] = terminals[child] || terminals[failures[child]];
+				queue.add(Integer.valueOf(child));
+			}
+		}
+	}
+
+	/**
+	 * @param text  a text
+	 * @return whether <code>text</code> contains one of the strings
+	 */
+	boolean containsAny(CharSequence text) {
+		if (terminals[0]) {
+			return true;
+		}
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			int next;
+			while ((next = next(state, c)) < 0 && state != 0) {
+				state = failures[state];
+			}
+			state = (next >= 0 ? next : 0);
+			if (terminals[state]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the state reached from <code>state</code> on <code>c</code>, or -1 if there is no transition
+	 */
+	private int next(int state, char c) {
+		int i = Arrays.binarySearch(labels[state], c);
+		return (i >= 0 ? targets[state][i] : -1);
+	}
+}
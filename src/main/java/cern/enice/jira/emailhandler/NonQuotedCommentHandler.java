@@ -8,10 +8,10 @@ package cern.enice.jira.emailhandler;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.StringTokenizer;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -28,6 +28,7 @@ import com.atlassian.jira.issue.comments.CommentManager;
 import com.atlassian.jira.issue.util.IssueUpdater;
 import com.atlassian.jira.security.PermissionManager;
 import com.atlassian.jira.plugins.mail.handlers.AbstractCommentHandler;
+import com.atlassian.jira.service.util.handler.MessageHandlerContext;
 import com.atlassian.mail.MailUtils;
 
 /**
@@ -42,9 +43,55 @@ public class NonQuotedCommentHandler extends AbstractCommentHandler
 {
     private static final Logger log = Logger.getLogger(NonQuotedCommentHandler.class);
     private static final String OUTLOOK_QUOTED_FILE = "outlook-email.translations";
-    private Collection messages;
 
 	private boolean m_registerSenderInCommentText = false;
+
+	/** Per-message value of m_registerSenderInCommentText, as one handler is shared by all messages. */
+	private final ThreadLocal<Boolean> m_registerSenderForMessage = new ThreadLocal<Boolean>();
+
+    /**
+     * The Outlook quote separators, read once per JVM and compiled into a single
+     * automaton, so that each line is scanned once whatever the number of separators.
+     */
+    private static final class OutlookQuoteSeparators
+    {
+        static final Collection<String> SEPARATORS = load();
+        static final MultiStringMatcher MATCHER = new MultiStringMatcher(SEPARATORS);
+
+        private static Collection<String> load()
+        {
+            Collection<String> messages = new LinkedList<String>();
+            BufferedReader reader = null;
+            try
+            {
+                // The file is assumed to be UTF-8 encoded.
+                reader = new BufferedReader(new InputStreamReader(ClassLoaderUtils.getResourceAsStream(OUTLOOK_QUOTED_FILE, NonQuotedCommentHandler.class), "UTF-8"));
+                String message = null;
+                while ((message = reader.readLine()) != null)
+                {
+                    messages.add(message);
+                }
+            }
+            catch (IOException e)
+            {
+                // no more properties
+                log.error("Error occurred while reading file '" + OUTLOOK_QUOTED_FILE + "'.");
+            }
+            finally
+            {
+                try
+                {
+                    if (reader != null)
+                        reader.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("Could not close the file '" + OUTLOOK_QUOTED_FILE + "'.");
+                }
+            }
+            return messages;
+        }
+    }
 	
 	public NonQuotedCommentHandler(){
 	   super();
@@ -58,6 +105,41 @@ public class NonQuotedCommentHandler extends AbstractCommentHandler
 		m_registerSenderInCommentText = registerSenderInCommentText;
 	}
 
+	/**
+	 * Adds a message as a comment. The handler is initialized once and may be
+	 * shared across messages, hence the per-message settings are given here.
+	 *
+	 * @param message  the message to add as a comment
+	 * @param context  the context of the message handling
+	 * @param registerSenderInCommentText  whether the sender is unknown to JIRA and must be recorded in the comment
+	 * @return  whether the message must be deleted
+	 * @throws MessagingException
+	 */
+	public boolean handleMessage(Message message, MessageHandlerContext context, boolean registerSenderInCommentText) throws MessagingException {
+		m_registerSenderForMessage.set(Boolean.valueOf(registerSenderInCommentText));
+		try {
+			return handleMessage(message, context);
+		} finally {
+			m_registerSenderForMessage.remove();
+		}
+	}
+
+	private boolean isRegisterSenderInCommentText() {
+		Boolean registerSender = m_registerSenderForMessage.get();
+		return (registerSender != null ? registerSender.booleanValue() : m_registerSenderInCommentText);
+	}
+
+    /**
+     * Records the issue of the message in JIRA, and in memory for the
+     * replies to come (see {@link MessageThreadIndex}).
+     */
+    @Override
+    protected void recordMessageId(String type, Message message, Long issueId, MessageHandlerContext context) throws MessagingException
+    {
+        super.recordMessageId(type, message, issueId, context);
+        MessageThreadIndex.getInstance().putRecorded(message, issueId, context);
+    }
+
 	/**
      * Given a message, adds the entire message body as a comment to
      * the first issue referenced in the subject.
@@ -65,7 +147,7 @@ public class NonQuotedCommentHandler extends AbstractCommentHandler
     protected String getEmailBody(Message message) throws MessagingException
     {
     	String body = MailUtils.getBody(message);
-    	if(m_registerSenderInCommentText){
+    	if(isRegisterSenderInCommentText()){
     		body = body + "\n[Commented via e-mail ";
             if (message.getFrom() != null && message.getFrom().length > 0) {
             	body = body + "received from: " + message.getFrom()[0] + "]";
@@ -87,8 +169,29 @@ public class NonQuotedCommentHandler extends AbstractCommentHandler
         if (body == null)
             return null;
 
-        StringTokenizer st = new StringTokenizer(body, "\n", true);
-        StringBuffer result = new StringBuffer();
+        try
+        {
+            return stripQuotedLines(new StringReader(body));
+        }
+        catch (IOException e)
+        {
+            // Cannot happen with a StringReader
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #stripQuotedLines(String)}, reading the body from <code>body</code>.
+     * Reading stops at the Outlook reply separator, as the rest of the message is quoted.
+     *
+     * @param body  the email body
+     * @return  the body without the quoted lines
+     * @throws IOException  if the body could not be read
+     */
+    public String stripQuotedLines(Reader body) throws IOException
+    {
+        LineTokenizer st = new LineTokenizer(body);
+        StringBuilder result = new StringBuilder();
 
         boolean strippedAttribution = false; // set to true once the attribution has been encountered
         boolean outlookQuotedLine = false; // set to true if the Microsoft Outlook reply message ("----- Original Message -----") is encountered.
@@ -101,17 +204,21 @@ public class NonQuotedCommentHandler extends AbstractCommentHandler
         {
             line1 = line2;
             line2 = line3;
-            line3 = (st.hasMoreTokens() ? st.nextToken() : null); // read next line
+            line3 = st.nextToken(); // read next line
             if (!"\n".equals(line3))
             {
                 // Ignore the newline ending line3, if line3 isn't a newline on its own
-                if (st.hasMoreTokens()) st.nextToken();
+                st.nextToken();
             }
             if (!strippedAttribution)
             {
                 if (!outlookQuotedLine)
                     outlookQuotedLine = isOutlookQuotedLine(line1);
 
+                // Everything from the Outlook separator on is dropped, no need to read further
+                if (outlookQuotedLine)
+                    break;
+
                 // Found our first quoted line; the attribution line may be line1 or line2
                 if (isQuotedLine(line3))
                 {
@@ -130,6 +237,42 @@ public class NonQuotedCommentHandler extends AbstractCommentHandler
         return result.toString();
     }
 
+    /**
+     * Splits a text like <code>new StringTokenizer(text, "\n", true)</code>: the
+     * tokens are either a newline or a run of other characters.
+     */
+    private static final class LineTokenizer
+    {
+        private final Reader reader;
+        private int pending = -1; // character read ahead, or -1
+
+        LineTokenizer(Reader reader)
+        {
+            this.reader = (reader instanceof BufferedReader || reader instanceof StringReader ? reader : new BufferedReader(reader));
+        }
+
+        /**
+         * @return  the next token, or <code>null</code> at the end of the text
+         */
+        String nextToken() throws IOException
+        {
+            int c = (pending >= 0 ? pending : reader.read());
+            pending = -1;
+            if (c < 0)
+                return null;
+            if (c == '\n')
+                return "\n";
+            StringBuilder token = new StringBuilder();
+            while (c >= 0 && c != '\n')
+            {
+                token.append((char) c);
+                c = reader.read();
+            }
+            pending = c;
+            return token.toString();
+        }
+    }
+
     private boolean looksLikeAttribution(String line)
     {
         if (line != null && (line.endsWith(":") || line.endsWith(":\r"))) return true;
@@ -146,55 +289,7 @@ public class NonQuotedCommentHandler extends AbstractCommentHandler
 
     private boolean isOutlookQuotedLine(String line)
     {
-        if (line != null)
-        {
-            for (Iterator iterator = getOutlookQuoteSeparators().iterator(); iterator.hasNext();)
-            {
-                String message = (String) iterator.next();
-                if (line.indexOf(message) != -1)
-                    return true;
-            }
-        }
-
-        return false;
-    }
-
-    private Collection getOutlookQuoteSeparators()
-    {
-        if (messages == null)
-        {
-            messages = new LinkedList();
-            BufferedReader reader = null;
-            try
-            {
-                // The file is assumed to be UTF-8 encoded.
-                reader = new BufferedReader(new InputStreamReader(ClassLoaderUtils.getResourceAsStream(OUTLOOK_QUOTED_FILE, this.getClass()), "UTF-8"));
-                String message = null;
-                while ((message = reader.readLine()) != null)
-                {
-                    messages.add(message);
-                }
-            }
-            catch (IOException e)
-            {
-                // no more properties
-                log.error("Error occurred while reading file '" + OUTLOOK_QUOTED_FILE + "'.");
-            }
-            finally
-            {
-                try
-                {
-                    if (reader != null)
-                        reader.close();
-                }
-                catch (IOException e)
-                {
-                    log.error("Could not close the file '" + OUTLOOK_QUOTED_FILE + "'.");
-                }
-            }
-        }
-
-        return messages;
+        return (line != null && OutlookQuoteSeparators.MATCHER.containsAny(line));
     }
 
     /**
@@ -0,0 +1,105 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.ManagerFactory;
+import com.atlassian.jira.issue.MutableIssue;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.user.UserUtils;
+
+/**
+ * Entities resolved while processing one message, so that the comment,
+ * create and transition paths load each of them at most once: users by
+ * name, projects by key, issues by key, and the parsed
+ * {@link IssueDescriptor}. Lookups that found nothing are remembered too.
+ * <p>
+ * An issue is loaded again after {@link #invalidateIssue(String)}, which
+ * must be called once the issue has been updated, so that later steps do
+ * not work on a stale copy.
+ * <p>
+ * A context belongs to one message and is not thread-safe.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+final class ProcessingContext {
+
+	private final IssueDescriptor issueDescriptor;
+	private final Map<String, User> usersByName = new HashMap<String, User>();
+	private final Map<String, Project> projectsByKey = new HashMap<String, Project>();
+	private final Map<String, MutableIssue> issuesByKey = new HashMap<String, MutableIssue>();
+
+	/**
+	 * @param issueDescriptor  the directives parsed from the message
+	 */
+	ProcessingContext(IssueDescriptor issueDescriptor) {
+		this.issueDescriptor = issueDescriptor;
+	}
+
+	/**
+	 * @return the directives parsed from the message
+	 */
+	IssueDescriptor getIssueDescriptor() {
+		return issueDescriptor;
+	}
+
+	/**
+	 * @param userName  the name of a user
+	 * @return  the user, or <code>null</code> if there is no user named <code>userName</code>
+	 */
+	User getUserByName(String userName) {
+		if (userName == null) {
+			return null;
+		}
+		if (!usersByName.containsKey(userName)) {
+			usersByName.put(userName, UserUtils.getUser(userName));
+		}
+		return usersByName.get(userName);
+	}
+
+	/**
+	 * Records a user resolved otherwise, e.g. the sender of the message.
+	 */
+	void putUser(User user) {
+		if (user != null) {
+			usersByName.put(user.getName(), user);
+		}
+	}
+
+	/**
+	 * @param projectKey  the key of a project, in upper case
+	 * @return  the project, or <code>null</code> if there is no project with this key
+	 */
+	Project getProjectByKey(String projectKey) {
+		if (projectKey == null) {
+			return null;
+		}
+		if (!projectsByKey.containsKey(projectKey)) {
+			projectsByKey.put(projectKey, ManagerFactory.getProjectManager().getProjectObjByKey(projectKey));
+		}
+		return projectsByKey.get(projectKey);
+	}
+
+	/**
+	 * @param issueKey  the key of an issue
+	 * @return  the issue, or <code>null</code> if there is no issue with this key
+	 */
+	MutableIssue getIssue(String issueKey) {
+		if (issueKey == null) {
+			return null;
+		}
+		if (!issuesByKey.containsKey(issueKey)) {
+			issuesByKey.put(issueKey, ComponentManager.getInstance().getIssueManager().getIssueObject(issueKey));
+		}
+		return issuesByKey.get(issueKey);
+	}
+
+	/**
+	 * Forgets an issue which was updated; it will be loaded again if needed.
+	 */
+	void invalidateIssue(String issueKey) {
+		issuesByKey.remove(issueKey);
+	}
+}
@@ -0,0 +1,148 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.ofbiz.core.entity.GenericValue;
+
+import com.atlassian.jira.ManagerFactory;
+import com.atlassian.jira.project.Project;
+
+/**
+ * The components of each project, by name, so that the components named
+ * in a <code>#COMPONENT=</code> tag and the default component of a
+ * handler are resolved in memory.
+ * <p>
+ * Names are matched ignoring case, and a name containing spaces may also
+ * be written with <code>__</code> in their place, as spaces cannot appear
+ * in a subject tag.
+ * <p>
+ * JIRA 5.1 publishes no event when a component is created, renamed or
+ * deleted, so the index of a project expires after {@link #MAX_AGE}, and
+ * is rebuilt when a name is not found (at most once per
+ * {@link #MIN_REBUILD_INTERVAL}, not to query the database for each
+ * misspelt tag); it is also dropped when JIRA clears its caches (see
+ * {@link EmailHandlerEventListener}).
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class ProjectComponentIndex {
+
+	private static final Logger log = Logger.getLogger(ProjectComponentIndex.class);
+
+	/** Maximum age of the index of a project, in milliseconds. */
+	public static final long MAX_AGE = 5 * 60 * 1000L;
+
+	/** Minimum age of the index of a project before it is rebuilt for a missing name, in milliseconds. */
+	public static final long MIN_REBUILD_INTERVAL = 60 * 1000L;
+
+	/** Maximum number of projects indexed. */
+	public static final int MAX_SIZE = 1000;
+
+	private static final ProjectComponentIndex INSTANCE = new ProjectComponentIndex();
+
+	private static final class Components {
+		final Map<String, GenericValue> byName;
+		final long builtAt = System.currentTimeMillis();
+
+		Components(Map<String, GenericValue> byName) {
+			this.byName = byName;
+		}
+	}
+
+	private final BoundedCache<Long, Components> projects = new BoundedCache<Long, Components>(MAX_SIZE, MAX_AGE);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+
+	private ProjectComponentIndex() {
+		// Singleton
+	}
+
+	/**
+	 * @return the index shared by all handlers
+	 */
+	public static ProjectComponentIndex getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param project  a project
+	 * @param name  the name of a component, ignoring case, possibly with <code>__</code> for spaces
+	 * @return  the component of <code>project</code> having this name, or <code>null</code>
+	 */
+	public GenericValue getComponent(Project project, String name) {
+		if (name == null) {
+			return null;
+		}
+		String key = name.trim().toLowerCase(Locale.ENGLISH);
+		Components components = projects.get(project.getId());
+		if (components == null) {
+			components = build(project);
+		}
+		GenericValue component = components.byName.get(key);
+		if (component == null
+				&& System.currentTimeMillis() - components.builtAt >= MIN_REBUILD_INTERVAL) {
+			// Maybe created or renamed since the index was built
+			component = build(project).byName.get(key);
+		}
+		if (component != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			log.debug("No component '" + name + "' in project " + project.getKey());
+		}
+		return component;
+	}
+
+	@SuppressWarnings({ "unchecked", "deprecation" })
+	private Components build(Project project) {
+		builds.incrementAndGet();
+		Collection<GenericValue> components = ManagerFactory.getProjectManager().getComponents(
+				project.getGenericValue());
+		Map<String, GenericValue> byName = new HashMap<String, GenericValue>();
+		for (GenericValue component : components) {
+			String name = component.getString("name");
+			if (name == null) {
+				continue;
+			}
+			name = name.trim().toLowerCase(Locale.ENGLISH);
+			register(byName, name, component);
+			if (name.indexOf(' ') >= 0) {
+				register(byName, name.replace(" ", "__"), component);
+			}
+		}
+		Components result = new Components(Collections.unmodifiableMap(byName));
+		projects.put(project.getId(), result);
+		log.debug("Indexed " + components.size() + " components of project " + project.getKey());
+		return result;
+	}
+
+	private static void register(Map<String, GenericValue> byName, String name, GenericValue component) {
+		if (byName.containsKey(name)) {
+			// Names differing only by case: the first one wins
+			log.debug("Component name '" + name + "' is ambiguous, using " + byName.get(name).getString("name"));
+			return;
+		}
+		byName.put(name, component);
+	}
+
+	/**
+	 * Drops the index; it will be rebuilt on next use.
+	 */
+	public void invalidate() {
+		projects.clear();
+		log.debug("Project component index invalidated");
+	}
+
+	public String toString() {
+		return "ProjectComponentIndex[projects=" + projects.size() + ", hits=" + hits.get()
+				+ ", misses=" + misses.get() + ", builds=" + builds.get() + "]";
+	}
+}
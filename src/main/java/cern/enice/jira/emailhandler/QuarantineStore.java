@@ -0,0 +1,528 @@
+package cern.enice.jira.emailhandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.plugins.mail.DefaultMessageHandlerContext;
+import com.atlassian.jira.service.util.handler.MessageHandlerContext;
+import com.atlassian.jira.service.util.handler.MessageHandlerExecutionMonitor;
+
+/**
+ * The messages the handlers failed to process, so that a message which
+ * cannot be processed does not cost a full attempt at every poll of the
+ * mailbox.
+ * <p>
+ * After a failure, a message is skipped, without being parsed, until its
+ * next attempt is due: {@link #RETRY_DELAY} after the first failure, then
+ * twice longer after each failure, up to {@link #MAX_RETRY_DELAY}. After a
+ * given number of attempts, the message is quarantined: it is written to
+ * the <code>quarantine</code> directory of the data directory (see
+ * {@link DataDirectory}) as a <code>.eml</code> file, and can be deleted
+ * from the mailbox. Quarantined messages can be listed, and replayed once
+ * the cause of their failure is fixed, by the administrators (see
+ * {@link EmailHandlerAdminResource}). A quarantined message records the
+ * configuration of the handler which quarantined it, and is replayed
+ * synchronously by a handler having that configuration, in a run of its
+ * own.
+ * <p>
+ * The failures are tracked in memory, by Message-ID (or by sender, subject
+ * and date, for the messages without one); they are forgotten on restart.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class QuarantineStore {
+
+	private static final Logger log = Logger.getLogger(QuarantineStore.class);
+
+	/** Default number of attempts before a message is quarantined. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	/** Delay before the first retry, in milliseconds; it doubles at each retry. */
+	public static final long RETRY_DELAY = 60 * 1000L;
+
+	/** Maximum delay between two attempts, in milliseconds. */
+	public static final long MAX_RETRY_DELAY = 24 * 60 * 60 * 1000L;
+
+	/** Maximum number of failing messages tracked. */
+	public static final int MAX_TRACKED = 10000;
+
+	/** Header recording why a quarantined message failed. */
+	public static final String REASON_HEADER = "X-Emailhandler-Quarantine-Reason";
+
+	/** Header recording the configuration of the handler which quarantined a message. */
+	public static final String HANDLER_HEADER = "X-Emailhandler-Quarantine-Handler";
+
+	private static final String DIRECTORY = "quarantine";
+	/** The names of the quarantined messages, see {@link #getName(String)}. */
+	private static final Pattern NAME = Pattern.compile("[0-9a-f]{32}");
+	private static final String EXTENSION = ".eml";
+
+	private static final QuarantineStore INSTANCE = new QuarantineStore();
+
+	/**
+	 * A message in quarantine.
+	 */
+	public static final class QuarantinedMessage {
+		private final String name;
+		private final String messageId;
+		private final String from;
+		private final String subject;
+		private final Date quarantined;
+		private final String reason;
+
+		QuarantinedMessage(String name, String messageId, String from, String subject, Date quarantined,
+				String reason) {
+			this.name = name;
+			this.messageId = messageId;
+			this.from = from;
+			this.subject = subject;
+			this.quarantined = quarantined;
+			this.reason = reason;
+		}
+
+		/**
+		 * @return the name identifying the message in the quarantine, for {@link QuarantineStore#replay}
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public String getMessageId() {
+			return messageId;
+		}
+
+		public String getFrom() {
+			return from;
+		}
+
+		public String getSubject() {
+			return subject;
+		}
+
+		public Date getQuarantined() {
+			return quarantined;
+		}
+
+		public String getReason() {
+			return reason;
+		}
+
+		public String toString() {
+			return name + " from " + from + ": " + subject + " (" + reason + ")";
+		}
+	}
+
+	private static final class Failure {
+		int attempts = 0;
+		long nextAttemptAt;
+	}
+
+	private final Map<String, Failure> failures = new LinkedHashMap<String, Failure>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+			return size() > MAX_TRACKED;
+		}
+	};
+
+	/** The handlers replaying the quarantined messages, by configuration (see {@link #getConfigurationId}). */
+	private final Map<String, AdvancedCreateOrCommentHandler> replayHandlers = new ConcurrentHashMap<String, AdvancedCreateOrCommentHandler>();
+
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong quarantined = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+
+	private QuarantineStore() {
+		// Singleton
+	}
+
+	/**
+	 * @return the store shared by all handlers
+	 */
+	public static QuarantineStore getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param message  a message
+	 * @return  the key tracking the failures of <code>message</code>
+	 * @throws MessagingException
+	 */
+	public static String getKey(Message message) throws MessagingException {
+		return MessageWorkItem.getKey(message);
+	}
+
+	/**
+	 * @param params  the parameters of a handler
+	 * @return  an id identifying the handlers configured with <code>params</code>
+	 */
+	public static String getConfigurationId(Map params) {
+		return getName(new TreeMap(params).toString());
+	}
+
+	/**
+	 * @param key  the key of a message
+	 * @return  whether the message must be attempted, i.e. it did not fail,
+	 *          or its next attempt is due
+	 */
+	public synchronized boolean isDue(String key) {
+		Failure failure = failures.get(key);
+		if (failure == null || System.currentTimeMillis() >= failure.nextAttemptAt) {
+			return true;
+		}
+		skipped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Records that a message was processed.
+	 *
+	 * @param key  the key of the message
+	 */
+	public synchronized void succeeded(String key) {
+		if (failures.remove(key) != null) {
+			log.info("Message " + key + " processed after previous failures");
+		}
+	}
+
+	/**
+	 * Records that a message could not be processed, and quarantines it
+	 * after <code>maxAttempts</code> attempts.
+	 *
+	 * @param key  the key of the message
+	 * @param message  the message
+	 * @param error  the cause of the failure
+	 * @param maxAttempts  the number of attempts before quarantine
+	 * @param configurationId  the configuration of the handler, which replays the message
+	 * @return  whether the message was quarantined, and must be deleted from the mailbox
+	 */
+	public boolean failed(String key, Message message, String error, int maxAttempts, String configurationId) {
+		Failure failure;
+		synchronized (this) {
+			failed.incrementAndGet();
+			failure = failures.get(key);
+			if (failure == null) {
+				failure = new Failure();
+				failures.put(key, failure);
+			}
+			failure.attempts++;
+			if (failure.attempts < maxAttempts) {
+				long delay = Math.min(RETRY_DELAY << Math.min(failure.attempts - 1, 30), MAX_RETRY_DELAY);
+				failure.nextAttemptAt = System.currentTimeMillis() + delay;
+				log.warn("Message " + key + " failed (" + error + "), attempt " + failure.attempts + " of "
+						+ maxAttempts + ", next attempt in " + (delay / 1000) + " s");
+				return false;
+			}
+		}
+		String reason = "failed " + failure.attempts + " times, last: " + error;
+		if (!spool(key, message, reason, configurationId)) {
+			// Kept in the mailbox, retried at the longest delay
+			synchronized (this) {
+				failure.nextAttemptAt = System.currentTimeMillis() + MAX_RETRY_DELAY;
+			}
+			return false;
+		}
+		synchronized (this) {
+			failures.remove(key);
+		}
+		quarantined.incrementAndGet();
+		log.error("Message " + key + " quarantined: " + reason);
+		return true;
+	}
+
+	private boolean spool(String key, Message message, String reason, String configurationId) {
+		File directory = getDirectory();
+		if (directory == null) {
+			log.error("No data directory, message " + key + " cannot be quarantined");
+			return false;
+		}
+		File file = new File(directory, getName(key) + EXTENSION);
+		File tmp = new File(directory, getName(key) + ".tmp");
+		OutputStream out = null;
+		try {
+			Message copy = message;
+			if (message instanceof MimeMessage) {
+				copy = new MimeMessage((MimeMessage) message);
+				copy.setHeader(REASON_HEADER, reason.replaceAll("[\\r\\n]+", " "));
+				copy.setHeader(HANDLER_HEADER, configurationId);
+			}
+			FileOutputStream fileOut = new FileOutputStream(tmp);
+			out = new BufferedOutputStream(fileOut);
+			copy.writeTo(out);
+			out.flush();
+			// On disk before the message is deleted from the mailbox
+			fileOut.getFD().sync();
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				if (!file.isFile()) {
+					throw new IOException("Could not rename " + tmp + " to " + file);
+				}
+				// Quarantined already, by an earlier failure of this message
+				log.warn("Could not rename " + tmp + " to " + file + ", keeping the quarantined copy");
+				tmp.delete();
+			}
+			return true;
+		} catch (IOException e) {
+			log.error("Could not quarantine message " + key + " to " + file, e);
+		} catch (MessagingException e) {
+			log.error("Could not quarantine message " + key + " to " + file, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					log.error("Could not close " + tmp);
+				}
+			}
+		}
+		tmp.delete();
+		return false;
+	}
+
+	/**
+	 * @return  the messages in quarantine, oldest first
+	 */
+	public List<QuarantinedMessage> listQuarantined() {
+		List<QuarantinedMessage> messages = new ArrayList<QuarantinedMessage>();
+		File directory = getDirectory();
+		if (directory == null) {
+			return messages;
+		}
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return messages;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long diff = f1.lastModified() - f2.lastModified();
+				return (diff < 0 ? -1 : diff > 0 ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			if (!file.getName().endsWith(EXTENSION)) {
+				continue;
+			}
+			String name = file.getName().substring(0, file.getName().length() - EXTENSION.length());
+			try {
+				MimeMessage message = read(file);
+				Address[] from = message.getFrom();
+				String[] reasons = message.getHeader(REASON_HEADER);
+				messages.add(new QuarantinedMessage(name, message.getMessageID(),
+						(from != null && from.length > 0 ? from[0].toString() : null), message.getSubject(),
+						new Date(file.lastModified()), (reasons != null ? reasons[0] : null)));
+			} catch (IOException e) {
+				log.warn("Could not read quarantined message " + file, e);
+			} catch (MessagingException e) {
+				log.warn("Could not read quarantined message " + file, e);
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * Registers the handler replaying the messages quarantined by the
+	 * handlers having its configuration; the latest handler registered for
+	 * a configuration is used.
+	 *
+	 * @param configurationId  the configuration of the handler, see {@link #getConfigurationId}
+	 * @param handler  a handler initialized with quarantine enabled
+	 */
+	void registerReplayHandler(String configurationId, AdvancedCreateOrCommentHandler handler) {
+		replayHandlers.put(configurationId, handler);
+	}
+
+	/**
+	 * Processes a quarantined message again, synchronously, in a run of its
+	 * own of a handler having the configuration which quarantined it; it
+	 * leaves the quarantine if the handler processes it.
+	 *
+	 * @param name  the name of the message, see {@link QuarantinedMessage#getName()}
+	 * @return  whether the message was processed
+	 * @throws IllegalStateException  if no handler having the configuration which quarantined
+	 *                                the message was initialized since JIRA started
+	 * @throws MessagingException
+	 */
+	public boolean replay(String name) throws MessagingException {
+		File directory = getDirectory();
+		File file = (directory != null && NAME.matcher(name).matches()
+				? new File(directory, name + EXTENSION) : null);
+		if (file == null || !file.isFile()) {
+			log.warn("No quarantined message " + name);
+			return false;
+		}
+		MimeMessage message;
+		try {
+			message = read(file);
+		} catch (IOException e) {
+			log.error("Could not read quarantined message " + file, e);
+			return false;
+		}
+		AdvancedCreateOrCommentHandler handler = getReplayHandler(message);
+		if (handler == null) {
+			throw new IllegalStateException("No handler having the configuration which quarantined message "
+					+ name + " is set up");
+		}
+		message.removeHeader(REASON_HEADER);
+		message.removeHeader(HANDLER_HEADER);
+		synchronized (this) {
+			// Attempted now, whatever its backoff
+			failures.remove(getKey(message));
+		}
+		if (!handler.replayMessage(message, createReplayContext(name))) {
+			log.warn("Quarantined message " + name + " could not be processed");
+			return false;
+		}
+		replayed.incrementAndGet();
+		if (!file.delete()) {
+			log.warn("Could not delete " + file);
+		}
+		log.info("Quarantined message " + name + " processed");
+		return true;
+	}
+
+	/**
+	 * @return  the handler replaying a quarantined message, or <code>null</code> if there is none
+	 */
+	private AdvancedCreateOrCommentHandler getReplayHandler(Message message) throws MessagingException {
+		String[] configurationIds = message.getHeader(HANDLER_HEADER);
+		if (configurationIds != null && configurationIds.length > 0) {
+			return replayHandlers.get(configurationIds[0].trim());
+		}
+		// Quarantined before the configuration was recorded: only a single handler is unambiguous
+		Collection<AdvancedCreateOrCommentHandler> handlers = replayHandlers.values();
+		return (handlers.size() == 1 ? handlers.iterator().next() : null);
+	}
+
+	/**
+	 * @return  the context of a real run replaying a quarantined message, reporting to the log
+	 */
+	private static MessageHandlerContext createReplayContext(String name) {
+		ComponentManager componentManager = ComponentManager.getInstance();
+		return new DefaultMessageHandlerContext(componentManager.getCommentManager(), new ReplayMonitor(name),
+				componentManager.getIssueManager(), componentManager.getAttachmentManager());
+	}
+
+	/**
+	 * Reports the replay of a quarantined message to the log.
+	 */
+	private static final class ReplayMonitor implements MessageHandlerExecutionMonitor {
+		private final String prefix;
+
+		ReplayMonitor(String name) {
+			this.prefix = "Replay of quarantined message " + name + ": ";
+		}
+
+		public void error(String error) {
+			log.error(prefix + error);
+		}
+
+		public void error(String error, Throwable e) {
+			log.error(prefix + error, e);
+		}
+
+		public void warning(String warning) {
+			log.warn(prefix + warning);
+		}
+
+		public void warning(String warning, Throwable e) {
+			log.warn(prefix + warning, e);
+		}
+
+		public void info(String info) {
+			log.info(prefix + info);
+		}
+
+		public void info(String info, Throwable e) {
+			log.info(prefix + info, e);
+		}
+
+		public void setNumMessages(int count) {
+			// A single message
+		}
+
+		public void setNumMessagesRejected(int count) {
+			// A single message
+		}
+
+		public void nextMessage(Message message) {
+			// A single message
+		}
+
+		public void messageRejected(Message message, String reason) {
+			log.warn(prefix + "rejected, " + reason);
+		}
+	}
+
+	private static MimeMessage read(File file) throws IOException, MessagingException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return new MimeMessage(Session.getInstance(new Properties()), in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static File getDirectory() {
+		File directory = DataDirectory.getFile(DIRECTORY);
+		if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+			return null;
+		}
+		return directory;
+	}
+
+	/**
+	 * @return a file name for the message having this key, the same for all its copies
+	 */
+	private static String getName(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public synchronized String toString() {
+		return "QuarantineStore[failing=" + failures.size() + ", skipped=" + skipped.get() + ", failed="
+				+ failed.get() + ", quarantined=" + quarantined.get() + ", replayed=" + replayed.get() + "]";
+	}
+}
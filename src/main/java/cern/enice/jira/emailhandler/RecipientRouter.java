@@ -0,0 +1,220 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Routing table from the JIRA email addresses to the projects new issues
+ * are created in.
+ * <p>
+ * The table is built once when the handler is initialized. Addresses are
+ * normalized (lower case, no surrounding brackets) and kept in a hash map,
+ * so resolving the recipients of a message costs one lookup per recipient,
+ * whatever the number of configured addresses. Plus-addresses
+ * (<code>jira+PROJ@domain</code>) are routed through their base address,
+ * the subaddress being the project key.
+ * <p>
+ * Addresses registered with {@link #addJiraAddress(String)} keep the
+ * historical behaviour: the project key is taken from the full name of the
+ * recipient header (e.g. "PROJ &lt;jira@domain&gt;"). For backward
+ * compatibility, such an address containing regular expression
+ * metacharacters is still matched as a regular expression, compiled once.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class RecipientRouter {
+
+	private static final Logger log = Logger.getLogger(RecipientRouter.class);
+
+	/** Characters denoting a regular expression rather than a plain address. */
+	private static final String REGEX_METACHARACTERS = "*?[](){}|^$\\";
+
+	/**
+	 * The recipient of a message which matched a route.
+	 */
+	public static final class Recipient {
+		private final String header;
+		private final String projectKey;
+
+		Recipient(String header, String projectKey) {
+			this.header = header;
+			this.projectKey = projectKey;
+		}
+
+		/**
+		 * @return the To:, Cc: or Bcc: header of the matching recipient
+		 */
+		public String getHeader() {
+			return header;
+		}
+
+		/**
+		 * @return the key of the project the message is routed to
+		 */
+		public String getProjectKey() {
+			return projectKey;
+		}
+	}
+
+	private static final class Route {
+		/** The address as configured. */
+		final String address;
+		/** Fixed project key, or <code>null</code> to use the recipient full name. */
+		final String projectKey;
+		/** Configuration order: the lowest one wins when several recipients match. */
+		final int rank;
+		/** Only set for the legacy addresses given as regular expressions. */
+		final Pattern pattern;
+
+		Route(String address, String projectKey, int rank, Pattern pattern) {
+			this.address = address;
+			this.projectKey = projectKey;
+			this.rank = rank;
+			this.pattern = pattern;
+		}
+	}
+
+	private final Map<String, Route> routes = new HashMap<String, Route>();
+	private final List<Route> patternRoutes = new ArrayList<Route>();
+	private int rank = 0;
+
+	/**
+	 * Registers a JIRA email address whose project is given by the full name
+	 * of the recipient header.
+	 *
+	 * @param address  an email address, or a regular expression matching it
+	 */
+	public void addJiraAddress(String address) {
+		if (address == null || address.trim().length() == 0) {
+			return;
+		}
+		if (isRegex(address)) {
+			Pattern pattern = Pattern.compile(MessageParser.emailAddressToRegex(address), Pattern.CASE_INSENSITIVE);
+			patternRoutes.add(new Route(address, null, rank++, pattern));
+		} else {
+			addRoute(new Route(address, null, rank++, null));
+		}
+	}
+
+	/**
+	 * Registers an email address routed to a fixed project.
+	 *
+	 * @param address  an email address
+	 * @param projectKey  the key of the project messages sent to <code>address</code> belong to
+	 */
+	public void addRoute(String address, String projectKey) {
+		if (address == null || address.trim().length() == 0) {
+			return;
+		}
+		addRoute(new Route(address, projectKey, rank++, null));
+	}
+
+	private void addRoute(Route route) {
+		String normalized = normalize(route.address);
+		if (routes.containsKey(normalized)) {
+			log.warn("Email address '" + route.address + "' is routed twice, keeping the first route");
+			return;
+		}
+		routes.put(normalized, route);
+		log.debug("Routing email address '" + normalized + "' to "
+				+ (route.projectKey != null ? "project " + route.projectKey : "the recipient full name"));
+	}
+
+	/**
+	 * @return whether no address was registered
+	 */
+	public boolean isEmpty() {
+		return routes.isEmpty() && patternRoutes.isEmpty();
+	}
+
+	/**
+	 * Finds the recipient of <code>message</code> that is a JIRA address. When
+	 * several recipients match, the first configured address wins.
+	 *
+	 * @param message  an email message
+	 * @return  the matching recipient, or <code>null</code> if no recipient is a JIRA address
+	 * @throws MessagingException  if there were problems handling the message
+	 */
+	public Recipient route(final Message message) throws MessagingException {
+		Address[] addresses = message.getAllRecipients();
+		if (addresses == null) {
+			return null;
+		}
+		Route bestRoute = null;
+		String bestHeader = null;
+		String bestSubaddress = null;
+		for (int i = 0; i < addresses.length; i++) {
+			String header = addresses[i].toString();
+			log.debug("Parsing message address " + i + ": " + header);
+			String address = (addresses[i] instanceof InternetAddress
+					? ((InternetAddress) addresses[i]).getAddress() : header);
+			if (address == null) {
+				continue;
+			}
+			address = normalize(address);
+			Route route = routes.get(address);
+			String subaddress = null;
+			if (route == null) {
+				int plus = address.indexOf('+');
+				int at = address.indexOf('@');
+				if (plus > 0 && at > plus + 1) {
+					route = routes.get(address.substring(0, plus) + address.substring(at));
+					subaddress = address.substring(plus + 1, at);
+				}
+			}
+			if (route == null) {
+				for (Route patternRoute : patternRoutes) {
+					if ((bestRoute == null || patternRoute.rank < bestRoute.rank)
+							&& patternRoute.pattern.matcher(header).find()) {
+						route = patternRoute;
+						break;
+					}
+				}
+			}
+			if (route != null && (bestRoute == null || route.rank < bestRoute.rank)) {
+				bestRoute = route;
+				bestHeader = header;
+				bestSubaddress = subaddress;
+			}
+		}
+		if (bestRoute == null) {
+			return null;
+		}
+		String projectKey;
+		if (bestSubaddress != null) {
+			projectKey = bestSubaddress.toUpperCase();
+		} else if (bestRoute.projectKey != null) {
+			projectKey = bestRoute.projectKey;
+		} else {
+			projectKey = MessageParser.getFullnameFromHeader(bestRoute.address, bestHeader);
+		}
+		return new Recipient(bestHeader, projectKey);
+	}
+
+	private static boolean isRegex(String address) {
+		for (int c = 0; c < address.length(); c++) {
+			if (REGEX_METACHARACTERS.indexOf(address.charAt(c)) != -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String normalize(String address) {
+		String normalized = address.trim().toLowerCase();
+		if (normalized.startsWith("<") && normalized.endsWith(">")) {
+			normalized = normalized.substring(1, normalized.length() - 1).trim();
+		}
+		return normalized;
+	}
+}
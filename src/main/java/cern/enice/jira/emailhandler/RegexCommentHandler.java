@@ -2,8 +2,13 @@ package cern.enice.jira.emailhandler;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -11,26 +16,46 @@ import javax.mail.Part;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.apache.oro.text.perl.Perl5Util;
 
 import com.atlassian.jira.plugins.mail.handlers.AbstractCommentHandler;
 import com.atlassian.jira.service.util.handler.MessageHandlerErrorCollector;
 import com.atlassian.mail.MailUtils;
 
+/**
+ * This handler adds the beginning of the email body as a comment: the body is
+ * cut at the first match of the split expressions (<code>splitregex</code>,
+ * <code>splitregex1</code>, ... parameters), typically the reply separator of
+ * a mail client. The expressions are written the Perl way,
+ * e.g. <code>/^-----Original Message-----/m</code>, and are compiled once.
+ */
 public class RegexCommentHandler extends AbstractCommentHandler
 {
     private static final Logger log = Logger.getLogger(RegexCommentHandler.class);
     
     private static final String KEY_SPLITREGEX = "splitregex";
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<");
     private String splitRegex;
 
+    /** The split expressions, in the order of their parameter names. */
+    private List<String> splitRegexes = Collections.emptyList();
+    /** All the split expressions combined, or null if they could not be. */
+    private Pattern splitPattern;
+    /** The split expressions, when they could not be combined. */
+    private List<Pattern> splitPatterns = Collections.emptyList();
+
     public void init(Map params, MessageHandlerErrorCollector monitor)
     {
         super.init(params, monitor);
-        if (params.containsKey(KEY_SPLITREGEX))
+        Map<String, String> regexes = new TreeMap<String, String>();
+        for (Object key : params.keySet())
         {
-            setSplitRegex((String) params.get(KEY_SPLITREGEX));
+            if (((String) key).toLowerCase().trim().startsWith(KEY_SPLITREGEX)
+                    && StringUtils.isNotEmpty((String) params.get(key)))
+            {
+                regexes.put((String) key, (String) params.get(key));
+            }
         }
+        setSplitRegexes(new ArrayList<String>(regexes.values()));
     }
 
     protected String getEmailBody(Message message) throws MessagingException
@@ -42,18 +67,13 @@ public class RegexCommentHandler extends AbstractCommentHandler
     {
         try
         {
-            if (StringUtils.isNotEmpty(getSplitRegex()))
+            int split = findSplit(rawBody);
+            if (split >= 0)
             {
-                Perl5Util perl5Util = new Perl5Util();
-                List parts = new ArrayList();
-                perl5Util.split(parts, getSplitRegex(), rawBody);
-                if (parts.size() > 1)
-                {
-                    StringBuffer comment = new StringBuffer("\n");
-                    comment.append(((String) parts.get(0)).trim());
-                    comment.append("\n\n");
-                    return comment.toString();
-                }
+                StringBuilder comment = new StringBuilder("\n");
+                comment.append(rawBody.substring(0, split).trim());
+                comment.append("\n\n");
+                return comment.toString();
             }
         }
         catch (Exception e)
@@ -63,6 +83,70 @@ public class RegexCommentHandler extends AbstractCommentHandler
         return rawBody;
     }
 
+    /**
+     * @return  the start of the first match of a split expression in <code>body</code>, 
+     *          or -1 if there is none
+     */
+    private int findSplit(String body)
+    {
+        if (body == null)
+            return -1;
+        if (splitPattern != null)
+            return findSplit(splitPattern, body);
+
+        int split = -1;
+        for (Pattern pattern : splitPatterns)
+        {
+            int start = findSplit(pattern, body);
+            if (start >= 0 && (split < 0 || start < split))
+                split = start;
+        }
+        return split;
+    }
+
+    /**
+     * Like Perl's split (and ORO's Perl5Util.split, used formerly), the body
+     * is only split if a non-empty field follows the first separator: a
+     * separator at the end of the body leaves it unchanged.
+     */
+    static int findSplit(Pattern pattern, String body)
+    {
+        Matcher matcher = pattern.matcher(body);
+        while (matcher.find())
+        {
+            // Like Perl's split, an empty match at the start does not split
+            if (matcher.end() > 0)
+            {
+                int start = matcher.start();
+                return (hasField(matcher, body) ? start : -1);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Only the separators directly following the current match are read, so
+     * that the cost does not depend on the length of the rest of the body.
+     *
+     * @return  whether a non-empty field follows the current match of <code>matcher</code>
+     */
+    private static boolean hasField(Matcher matcher, String body)
+    {
+        // Anchors and lookarounds see the whole body, as with find()
+        matcher.useAnchoringBounds(false);
+        matcher.useTransparentBounds(true);
+        int position = matcher.end();
+        while (position < body.length())
+        {
+            matcher.region(position, body.length());
+            // An empty separator splits before the next character, a field
+            if (!matcher.lookingAt() || matcher.end() == position)
+                return true;
+            position = matcher.end();
+        }
+        return false;
+    }
+
     public String getSplitRegex()
     {
         return splitRegex;
@@ -70,7 +154,109 @@ public class RegexCommentHandler extends AbstractCommentHandler
 
     public void setSplitRegex(String splitRegex)
     {
-        this.splitRegex = splitRegex;
+        setSplitRegexes(StringUtils.isNotEmpty(splitRegex)
+                ? Collections.singletonList(splitRegex) : Collections.<String>emptyList());
+    }
+
+    /**
+     * @return  the split expressions
+     */
+    public List<String> getSplitRegexes()
+    {
+        return splitRegexes;
+    }
+
+    /**
+     * Sets and compiles the split expressions. Invalid expressions, and
+     * expressions without delimiters, are ignored.
+     *
+     * @param splitRegexes  the split expressions, in Perl syntax (<code>/pattern/flags</code>)
+     */
+    public void setSplitRegexes(List<String> splitRegexes)
+    {
+        this.splitRegexes = Collections.unmodifiableList(new ArrayList<String>(splitRegexes));
+        this.splitRegex = (splitRegexes.isEmpty() ? null : splitRegexes.get(0));
+
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        StringBuilder combined = new StringBuilder();
+        for (String regex : splitRegexes)
+        {
+            String javaRegex = toJavaRegex(regex);
+            if (javaRegex == null)
+            {
+                // Rejected by Perl5Util.split too, the body was left unchanged
+                log.warn("Ignoring split expression '" + regex + "' without delimiters, expected /pattern/flags");
+                continue;
+            }
+            try
+            {
+                patterns.add(Pattern.compile(javaRegex));
+            }
+            catch (PatternSyntaxException e)
+            {
+                log.warn("Ignoring invalid split expression '" + regex + "': " + e.getMessage());
+                continue;
+            }
+            if (combined.length() > 0)
+                combined.append('|');
+            combined.append(javaRegex);
+        }
+
+        splitPattern = null;
+        splitPatterns = patterns;
+        if (patterns.size() == 1)
+        {
+            splitPattern = patterns.get(0);
+        }
+        else if (patterns.size() > 1 && !BACK_REFERENCE.matcher(combined).find())
+        {
+            // Group numbers would shift in the alternation if there were back references
+            try
+            {
+                splitPattern = Pattern.compile(combined.toString());
+            }
+            catch (PatternSyntaxException e)
+            {
+                log.debug("Could not combine the split expressions, matching them one by one", e);
+            }
+        }
+    }
+
+    /**
+     * Converts a Perl expression, <code>/pattern/flags</code> or <code>m{pattern}flags</code>,
+     * into a Java expression with the flags embedded as a group: <code>(?flags:pattern)</code>. 
+     *
+     * @return  the Java expression, or <code>null</code> if the expression has no delimiters
+     */
+    static String toJavaRegex(String perlRegex)
+    {
+        String regex = perlRegex.trim();
+        int start = (regex.startsWith("m") && regex.length() > 1 && !Character.isLetterOrDigit(regex.charAt(1)) ? 1 : 0);
+        // Like Perl, only m allows other delimiters than /
+        if (regex.length() < start + 2 || Character.isLetterOrDigit(regex.charAt(start)) 
+                || Character.isWhitespace(regex.charAt(start)) || regex.charAt(start) == '\\'
+                || (start == 0 && regex.charAt(0) != '/'))
+        {
+            return null;
+        }
+        char open = regex.charAt(start);
+        int closeIndex = "([{<".indexOf(open);
+        char close = (closeIndex >= 0 ? ")]}>".charAt(closeIndex) : open);
+        int end = regex.lastIndexOf(close);
+        if (end <= start)
+        {
+            return null;
+        }
+        StringBuilder flags = new StringBuilder();
+        for (int i = end + 1; i < regex.length(); i++)
+        {
+            char flag = regex.charAt(i);
+            if ("imsx".indexOf(flag) >= 0)
+                flags.append(flag);
+            else
+                log.warn("Ignoring unsupported flag '" + flag + "' of split expression " + perlRegex);
+        }
+        return "(?" + flags + ":" + regex.substring(start + 1, end) + ")";
     }
 
     /**
@@ -1,5 +1,8 @@
 package cern.enice.jira.emailhandler;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,14 +17,22 @@ public class SubjectRegexpReplace {
 	private final Logger log = Logger
 			.getLogger(SubjectRegexpReplace.class);
 	private Pattern regexp;
+	private int groupCount;
 	private String replace;
-	private static final String GROUP_REGEXP="\\$(\\d+)";
+	private static final Pattern GROUP_REGEXP = Pattern.compile("\\$(\\d+)");
+	
+	/*
+	 * The replace pattern split into segments: literal text (segmentGroups[i] < 0)
+	 * or group references (segmentGroups[i] is the group number).
+	 */
+	private String[] segmentTexts;
+	private int[] segmentGroups;
 	
 	/**
 	 * Creates empty object for later initialization. Afterwards, you must define at least regexp! 
 	 */
 	public SubjectRegexpReplace() {
-		this.replace = "$0";
+		setReplace("$0");
 	}
 	
 	/**
@@ -29,8 +40,8 @@ public class SubjectRegexpReplace {
 	 * @param replace Replace pattern defining the look of output
 	 */
 	public SubjectRegexpReplace(String pattern, String replace) {
-		this.regexp = Pattern.compile(pattern);
-		this.replace = replace;
+		setRegexp(pattern);
+		setReplace(replace);
 	}
 	
 	/**
@@ -38,8 +49,8 @@ public class SubjectRegexpReplace {
 	 * @param pattern Regexp to find patterns in message subject
 	 */
 	public SubjectRegexpReplace(String pattern) {
-		this.regexp = Pattern.compile(pattern);
-		this.replace = "$0";	// 0 group means the whole expression
+		setRegexp(pattern);
+		setReplace("$0");	// 0 group means the whole expression
 	}
 	
 	/**
@@ -54,6 +65,14 @@ public class SubjectRegexpReplace {
 	 */
 	public void setRegexp(String regexp) {
 		this.regexp = Pattern.compile(regexp);
+		this.groupCount = this.regexp.matcher("").groupCount();
+	}
+
+	/**
+	 * @return Number of capturing groups of the regexp
+	 */
+	public int getGroupCount() {
+		return groupCount;
 	}
 
 	/**
@@ -68,6 +87,30 @@ public class SubjectRegexpReplace {
 	 */
 	public void setReplace(String replace) {
 		this.replace = replace;
+
+		// Parsed once, so that outputs are assembled without regexp work
+		List<String> texts = new ArrayList<String>();
+		List<Integer> groups = new ArrayList<Integer>();
+		Matcher groupmatcher = GROUP_REGEXP.matcher(replace);
+		int last = 0;
+		while (groupmatcher.find()) {
+			if (groupmatcher.start() > last) {
+				texts.add(replace.substring(last, groupmatcher.start()));
+				groups.add(Integer.valueOf(-1));
+			}
+			texts.add(null);
+			groups.add(Integer.valueOf(groupmatcher.group(1)));
+			last = groupmatcher.end();
+		}
+		if (last < replace.length()) {
+			texts.add(replace.substring(last));
+			groups.add(Integer.valueOf(-1));
+		}
+		segmentTexts = texts.toArray(new String[texts.size()]);
+		segmentGroups = new int[groups.size()];
+		for (int i = 0; i < segmentGroups.length; i++) {
+			segmentGroups[i] = groups.get(i).intValue();
+		}
 	}
 
 	
@@ -102,31 +145,39 @@ public class SubjectRegexpReplace {
 	
 	/**
 	 * Completes the pattern given as a replace pattern with groups found in a given expression (according to regexp pattern) and returns the final result.
-	 * @param expr Expression to get information from
+	 * Groups which did not participate in the match, or that the regexp does not have, are replaced with nothing.
+	 * @param matcher Match of the regexp in the message subject
 	 * @return Output defined as replace pattern
 	 */
 	public String getOutput(Matcher matcher) {
 		// regexp must be defined!
 		if(regexp==null || matcher==null)
 			return null;
-		String result = null;
-//		if(matcher.find()) {
-			// found expression
-			result = replace;
-			// find $\d+ in replace pattern
-			Matcher groupmatcher = Pattern.compile(GROUP_REGEXP).matcher(replace);
-			while(groupmatcher.find()) {
-				// get group number
-				Integer groupNo = new Integer(groupmatcher.group().substring(1));
-				// replace group numbers for actual groups from expression found in subject
-				if(groupNo==0)
-					result=result.replaceAll("\\$"+groupNo, matcher.group());
-				else
-					result=result.replaceAll("\\$"+groupNo, matcher.group(groupNo));
-				log.debug("Actual output result: "+result);
+		return getOutput(matcher, 0);
+	}
+
+	/**
+	 * Same as {@link #getOutput(Matcher)}, for a match of a larger expression in
+	 * which the regexp is a group.
+	 * @param match Match of the larger expression
+	 * @param groupOffset Number of the group of the larger expression matching the regexp
+	 * @return Output defined as replace pattern
+	 */
+	String getOutput(MatchResult match, int groupOffset) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < segmentGroups.length; i++) {
+			int groupNo = segmentGroups[i];
+			if (groupNo < 0) {
+				result.append(segmentTexts[i]);
+			} else if (groupNo <= groupCount) {
+				String group = match.group(groupOffset + groupNo);
+				if (group != null) {
+					result.append(group);
+				}
 			}
-//		}
-		return result;
+		}
+		log.debug("Actual output result: "+result);
+		return result.toString();
 	}
 	
 }
@@ -0,0 +1,125 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The subject rewrite rules of a handler (<code>subjectregexp&lt;X&gt;</code> and
+ * <code>subjectreplace&lt;X&gt;</code> parameters), merged into a single
+ * expression so that the subject is scanned once whatever the number of
+ * rules. Each rule's expression becomes a group of the merged one, and its
+ * replace pattern is filled from the groups following it.
+ * <p>
+ * Matches are found from left to right and do not overlap: where several
+ * rules match at the same position, the first one in the order of the
+ * parameter names wins. Rules whose expressions use back references, which
+ * would be renumbered, are scanned separately.
+ * <p>
+ * The engine is immutable and may be shared between threads.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+final class SubjectRewriteEngine {
+
+	private static final Logger log = Logger.getLogger(SubjectRewriteEngine.class);
+
+	private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<");
+
+	/** The merged expression, or null if no rule could be merged. */
+	private final Pattern merged;
+	/** The rules of the merged expression. */
+	private final List<SubjectRegexpReplace> mergedRules = new ArrayList<SubjectRegexpReplace>();
+	/** Group of the merged expression matching each merged rule's expression. */
+	private final int[] groupOffsets;
+	/** Rules scanned separately. */
+	private final List<SubjectRegexpReplace> separateRules = new ArrayList<SubjectRegexpReplace>();
+
+	/**
+	 * @param rules  the rules, by name, in the order they should apply
+	 */
+	SubjectRewriteEngine(Map<String, SubjectRegexpReplace> rules) {
+		StringBuilder regex = new StringBuilder();
+		List<Integer> offsets = new ArrayList<Integer>();
+		int group = 1;
+		for (Map.Entry<String, SubjectRegexpReplace> rule : rules.entrySet()) {
+			Pattern pattern = rule.getValue().getRegexp();
+			if (pattern == null) {
+				log.warn("Ignoring subject replace pattern " + rule.getKey() + " without subject regexp");
+				continue;
+			}
+			if (BACK_REFERENCE.matcher(pattern.pattern()).find()) {
+				separateRules.add(rule.getValue());
+				continue;
+			}
+			if (regex.length() > 0) {
+				regex.append('|');
+			}
+			regex.append('(').append(pattern.pattern()).append(')');
+			mergedRules.add(rule.getValue());
+			offsets.add(Integer.valueOf(group));
+			group += 1 + rule.getValue().getGroupCount();
+		}
+
+		Pattern compiled = null;
+		if (!mergedRules.isEmpty()) {
+			try {
+				compiled = Pattern.compile(regex.toString());
+			} catch (PatternSyntaxException e) {
+				// e.g. the same group name in two rules
+				log.debug("Could not merge the subject regexps, scanning them separately", e);
+				separateRules.addAll(0, mergedRules);
+				mergedRules.clear();
+				offsets.clear();
+			}
+		}
+		merged = compiled;
+		groupOffsets = new int[offsets.size()];
+		for (int i = 0; i < groupOffsets.length; i++) {
+			groupOffsets[i] = offsets.get(i).intValue();
+		}
+	}
+
+	/**
+	 * @return whether there is no rule
+	 */
+	boolean isEmpty() {
+		return merged == null && separateRules.isEmpty();
+	}
+
+	/**
+	 * @param subject  the subject of a message
+	 * @return  the outputs of the rules matching <code>subject</code>, in the order of the
+	 *          matches, those of the rules scanned separately last
+	 */
+	List<String> rewrite(String subject) {
+		if (subject == null || isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<String> outputs = new ArrayList<String>();
+		if (merged != null) {
+			Matcher matcher = merged.matcher(subject);
+			while (matcher.find()) {
+				for (int i = 0; i < groupOffsets.length; i++) {
+					if (matcher.start(groupOffsets[i]) >= 0) {
+						outputs.add(mergedRules.get(i).getOutput(matcher, groupOffsets[i]));
+						break;
+					}
+				}
+			}
+		}
+		for (SubjectRegexpReplace rule : separateRules) {
+			Matcher matcher = rule.getMatcher(subject);
+			while (matcher.find()) {
+				outputs.add(rule.getOutput(matcher));
+			}
+		}
+		return outputs;
+	}
+}
@@ -0,0 +1,137 @@
+package cern.enice.jira.emailhandler;
+
+
+/**
+ * Recognizes the <code>#TAG</code> and <code>#TAG=value</code> directives of
+ * {@link Settings} in the tokens of a message subject.
+ * <p>
+ * The tag vocabulary is compiled once into a prefix trie, so classifying a
+ * token is a single walk over its characters, without any regular expression
+ * being compiled or evaluated. Tags are matched case-sensitively, as they were
+ * with <code>String.matches</code>.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+final class SubjectTagScanner {
+
+	/**
+	 * The tags that can be found in a subject. A tag either has to match the
+	 * whole token (e.g. <code>#BUG</code>), or only has to prefix it, in
+	 * which case the rest of the token is the tag value (e.g.
+	 * <code>#COMPONENT=</code>).
+	 */
+	enum Tag {
+		ISSUETYPE_IMPROVEMENT(Settings.REGEX_ISSUETYPE_IMPROVEMENT, false),
+		ISSUETYPE_SUBTASK(Settings.REGEX_ISSUETYPE_SUBTASK, false),
+		ISSUETYPE_TASK(Settings.REGEX_ISSUETYPE_TASK, false),
+		ISSUETYPE_NEW_FEATURE(Settings.REGEX_ISSUETYPE_NEW_FEATURE, false),
+		ISSUETYPE_BUG(Settings.REGEX_ISSUETYPE_BUG, false),
+		PRIORITY_TRIVIAL(Settings.REGEX_PRIORITY_TRIVIAL, false),
+		PRIORITY_MINOR(Settings.REGEX_PRIORITY_MINOR, false),
+		PRIORITY_MAJOR(Settings.REGEX_PRIORITY_MAJOR, false),
+		PRIORITY_CRITICAL(Settings.REGEX_PRIORITY_CRITICAL, false),
+		PRIORITY_BLOCKER(Settings.REGEX_PRIORITY_BLOCKER, false),
+		COMPONENT(Settings.REGEX_COMPONENT, true),
+		PROJECTKEY(Settings.REGEX_PROJECTKEY, true),
+		REPORTER(Settings.REGEX_REPORTER, true),
+		ASSIGNEE(Settings.REGEX_ASSIGNEE, true),
+		DUEDATE(Settings.REGEX_DUEDATE, true),
+		ESTIMATE(Settings.REGEX_ESTIMATE, true),
+		WORKFLOW_TARGET(Settings.REGEX_WORKFLOW_TARGET, true),
+		WORKFLOW_RESOLVE(Settings.REGEX_WORKFLOW_RESOLVE, false),
+		WORKFLOW_CLOSE(Settings.REGEX_WORKFLOW_CLOSE, false),
+		WORKFLOW_RESOLUTION(Settings.REGEX_WORKFLOW_RESOLUTION, true);
+
+		private final String text;
+		private final boolean prefix;
+
+		private Tag(String text, boolean prefix) {
+			this.text = text;
+			this.prefix = prefix;
+		}
+
+		/**
+		 * @return the literal text of the tag, e.g. <code>#COMPONENT=</code>
+		 */
+		String getText() {
+			return text;
+		}
+
+		/**
+		 * @return whether the tag is followed by a value in the token
+		 */
+		boolean isPrefix() {
+			return prefix;
+		}
+
+		/**
+		 * @param token  a token recognized as this tag
+		 * @return  the value following the tag in <code>token</code>, or an empty string
+		 */
+		String getValue(String token) {
+			return token.substring(text.length());
+		}
+	}
+
+	/** Tags are made of ASCII characters only; anything else ends the walk. */
+	private static final int ALPHABET = 128;
+
+	private static final class Node {
+		final Node[] next = new Node[ALPHABET];
+		Tag exact;
+		Tag prefix;
+	}
+
+	private static final SubjectTagScanner INSTANCE = new SubjectTagScanner();
+
+	private final Node root = new Node();
+
+	private SubjectTagScanner() {
+		for (Tag tag : Tag.values()) {
+			Node node = root;
+			String text = tag.getText();
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (node.next[c] == null) {
+					node.next[c] = new Node();
+				}
+				node = node.next[c];
+			}
+			if (tag.isPrefix()) {
+				node.prefix = tag;
+			} else {
+				node.exact = tag;
+			}
+		}
+	}
+
+	/**
+	 * @return the shared scanner, the tag vocabulary being fixed
+	 */
+	static SubjectTagScanner getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Classifies a subject token.
+	 *
+	 * @param token  a whitespace-free token of the subject
+	 * @return  the tag <code>token</code> is made of, or <code>null</code> if
+	 * it is plain summary text
+	 */
+	Tag match(String token) {
+		Node node = root;
+		Tag prefixMatch = null;
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			node = (c < ALPHABET ? node.next[c] : null);
+			if (node == null) {
+				return prefixMatch;
+			}
+			if (node.prefix != null) {
+				prefixMatch = node.prefix;
+			}
+		}
+		return (node.exact != null ? node.exact : prefixMatch);
+	}
+}
@@ -0,0 +1,461 @@
+package cern.enice.jira.emailhandler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.jira.util.thread.JiraThreadLocalUtils;
+
+/**
+ * Queue of the workflow transitions requested by messages, applied by a
+ * background worker so that a slow workflow does not hold the mail
+ * service: the comment is written and the message deleted right away.
+ * <p>
+ * The queue is durable: each transition is appended to a journal in the
+ * data directory (see {@link DataDirectory}) before the message is
+ * acknowledged, and marked done once applied or given up, so pending
+ * transitions survive a restart. Pending transitions are resumed when a
+ * handler starts the queue. A transition which cannot be journaled is not
+ * queued, the caller applies it itself. The journal is compacted when the
+ * queue starts, and then every 1000 completed transitions.
+ * <p>
+ * A failed transition is retried with an exponential backoff, up to
+ * {@link #MAX_ATTEMPTS} times; it is then logged as an error, and kept in
+ * the list of the recent failures, shown to the administrators by
+ * {@link EmailHandlerAdminResource}.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class TransitionQueue {
+
+	private static final Logger log = Logger.getLogger(TransitionQueue.class);
+
+	/** Number of attempts before a transition is given up. */
+	public static final int MAX_ATTEMPTS = 5;
+
+	/** Delay before the first retry, in milliseconds; it doubles at each retry. */
+	public static final long RETRY_DELAY = 30 * 1000L;
+
+	/** Number of recent failures kept. */
+	public static final int MAX_RECENT_FAILURES = 50;
+
+	private static final String JOURNAL_FILE = "transitions.journal";
+	private static final String ADD = "ADD";
+	private static final String DONE = "DONE";
+	/** Number of done entries after which the journal is compacted. */
+	private static final int COMPACT_THRESHOLD = 1000;
+
+	private static final TransitionQueue INSTANCE = new TransitionQueue();
+
+	/**
+	 * Applies a queued transition.
+	 */
+	public interface Applier {
+
+		/**
+		 * @param transition  the transition to apply
+		 * @return  whether the transition was applied
+		 * @throws Exception  if the transition failed
+		 */
+		boolean apply(Transition transition) throws Exception;
+	}
+
+	/**
+	 * A workflow transition requested by a message.
+	 */
+	public static final class Transition {
+		private final long id;
+		private final String issueKey;
+		private final String username;
+		private final String actionName;
+		private final String resolution;
+		private int attempts = 0;
+
+		Transition(long id, String issueKey, String username, String actionName, String resolution) {
+			this.id = id;
+			this.issueKey = issueKey;
+			this.username = username;
+			this.actionName = actionName;
+			this.resolution = resolution;
+		}
+
+		public String getIssueKey() {
+			return issueKey;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public String getActionName() {
+			return actionName;
+		}
+
+		public String getResolution() {
+			return resolution;
+		}
+
+		public String toString() {
+			return "'" + actionName + "' on " + issueKey + " by " + username;
+		}
+	}
+
+	private final Object journalLock = new Object();
+	private File journalFile;
+	private FileOutputStream journalStream;
+	private Writer journal;
+	private long nextId = 1;
+	private int doneEntries = 0;
+	private final Map<Long, Transition> pending = new LinkedHashMap<Long, Transition>();
+
+	private volatile Applier applier;
+	private ScheduledExecutorService worker;
+
+	private final LinkedList<String> recentFailures = new LinkedList<String>();
+	private final AtomicLong applied = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	private TransitionQueue() {
+		// Singleton
+	}
+
+	/**
+	 * @return the queue shared by all handlers
+	 */
+	public static TransitionQueue getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Starts the worker, resuming the transitions left pending in the journal,
+	 * unless it is already started. The latest applier given is used.
+	 *
+	 * @param applier  applies the transitions
+	 */
+	public void start(Applier applier) {
+		this.applier = applier;
+		synchronized (journalLock) {
+			if (worker != null) {
+				return;
+			}
+			worker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "emailhandler-transitions");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			openJournal();
+			for (Transition transition : pending.values()) {
+				schedule(transition, 0);
+			}
+			log.info("Transition queue started, " + pending.size() + " pending transitions resumed");
+		}
+	}
+
+	/**
+	 * Stops the worker; pending transitions stay in the journal.
+	 */
+	public void shutdown() {
+		synchronized (journalLock) {
+			if (worker == null) {
+				return;
+			}
+			worker.shutdownNow();
+			worker = null;
+			closeJournal();
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Queues a transition. It is journaled before this method returns.
+	 *
+	 * @param issueKey  the key of the issue
+	 * @param username  the user performing the transition
+	 * @param actionName  the name of the workflow action
+	 * @param resolution  the resolution given in the message, or <code>null</code>
+	 * @throws IOException  if the transition could not be journaled; it is not queued
+	 */
+	public void enqueue(String issueKey, String username, String actionName, String resolution)
+			throws IOException {
+		synchronized (journalLock) {
+			if (worker == null) {
+				throw new IllegalStateException("Transition queue not started");
+			}
+			if (journal == null) {
+				throw new IOException("No journal, the transition would not survive a restart");
+			}
+			Transition transition = new Transition(nextId++, issueKey, username, actionName, resolution);
+			write(ADD, transition);
+			// On disk before the message is deleted
+			journalStream.getFD().sync();
+			pending.put(Long.valueOf(transition.id), transition);
+			schedule(transition, 0);
+		}
+		log.debug("Queued transition '" + actionName + "' on " + issueKey);
+	}
+
+	private void schedule(final Transition transition, long delay) {
+		worker.schedule(new Runnable() {
+			public void run() {
+				process(transition);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void process(Transition transition) {
+		transition.attempts++;
+		boolean success = false;
+		String error = null;
+		// Sets up the thread like a service thread of JIRA
+		JiraThreadLocalUtils.preCall();
+		// Transitions and replies to the same issue must not race
+		Lock issueLock = IssueLocks.getLock(transition.issueKey);
+		issueLock.lock();
+		try {
+			success = applier.apply(transition);
+			if (!success) {
+				error = "the transition is not available or not valid";
+			}
+		} catch (Exception e) {
+			error = e.toString();
+			log.debug("Transition " + transition + " failed", e);
+		} finally {
+			issueLock.unlock();
+			JiraThreadLocalUtils.postCall(log, null);
+		}
+
+		synchronized (journalLock) {
+			if (worker == null) {
+				return;
+			}
+			if (success) {
+				applied.incrementAndGet();
+				complete(transition);
+			} else if (transition.attempts < MAX_ATTEMPTS) {
+				retried.incrementAndGet();
+				long delay = RETRY_DELAY << (transition.attempts - 1);
+				log.warn("Transition " + transition + " failed (" + error + "), retrying in "
+						+ (delay / 1000) + " s");
+				schedule(transition, delay);
+			} else {
+				failed.incrementAndGet();
+				String failure = "Transition " + transition + " failed after " + transition.attempts
+						+ " attempts: " + error;
+				log.error(failure);
+				recentFailures.addFirst(failure);
+				if (recentFailures.size() > MAX_RECENT_FAILURES) {
+					recentFailures.removeLast();
+				}
+				complete(transition);
+			}
+		}
+	}
+
+	private void complete(Transition transition) {
+		pending.remove(Long.valueOf(transition.id));
+		append(DONE, transition);
+		doneEntries++;
+		if (doneEntries >= COMPACT_THRESHOLD) {
+			compactJournal();
+		}
+	}
+
+	/*
+	 * Journal: one line per event, ADD with the transition, or DONE with its id.
+	 */
+
+	private void openJournal() {
+		journalFile = DataDirectory.getFile(JOURNAL_FILE);
+		if (journalFile == null) {
+			log.warn("No data directory, queued transitions will not survive a restart");
+			return;
+		}
+		if (journalFile.exists()) {
+			readJournal();
+		}
+		compactJournal();
+	}
+
+	private void readJournal() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				try {
+					long id = Long.parseLong(fields[1]);
+					nextId = Math.max(nextId, id + 1);
+					if (ADD.equals(fields[0]) && fields.length == 6) {
+						pending.put(Long.valueOf(id), new Transition(id, unescape(fields[2]),
+								unescape(fields[3]), unescape(fields[4]), unescape(fields[5])));
+					} else if (DONE.equals(fields[0])) {
+						pending.remove(Long.valueOf(id));
+					}
+				} catch (RuntimeException e) {
+					// e.g. a line truncated by a crash
+					log.warn("Ignoring malformed line of " + journalFile + ": " + line);
+				}
+			}
+		} catch (IOException e) {
+			log.error("Could not read " + journalFile, e);
+		} finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {
+				log.error("Could not close " + journalFile);
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the journal with the pending transitions only. The compacted
+	 * journal is written aside, and replaces the journal only once on disk;
+	 * if it cannot, the journal is kept as is.
+	 */
+	private void compactJournal() {
+		if (journalFile == null) {
+			return;
+		}
+		closeJournal();
+		// Tried again after as many completed transitions if it fails
+		doneEntries = 0;
+		File compacted = new File(journalFile.getPath() + ".tmp");
+		try {
+			journalStream = new FileOutputStream(compacted);
+			journal = new OutputStreamWriter(journalStream, "UTF-8");
+			for (Transition transition : pending.values()) {
+				write(ADD, transition);
+			}
+			journal.flush();
+			journalStream.getFD().sync();
+			closeJournal();
+			if (!compacted.renameTo(journalFile)) {
+				log.error("Could not rename " + compacted + " to " + journalFile
+						+ ", the journal is not compacted");
+				compacted.delete();
+			}
+		} catch (IOException e) {
+			log.error("Could not write " + compacted + ", the journal is not compacted", e);
+			closeJournal();
+			compacted.delete();
+		}
+		try {
+			journalStream = new FileOutputStream(journalFile, true);
+			journal = new OutputStreamWriter(journalStream, "UTF-8");
+		} catch (IOException e) {
+			log.error("Could not open " + journalFile
+					+ ", transitions will not be queued", e);
+			closeJournal();
+		}
+	}
+
+	/**
+	 * Journals an event, logging a failure: a transition which is not marked
+	 * done is applied again after a restart.
+	 */
+	private void append(String event, Transition transition) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			write(event, transition);
+		} catch (IOException e) {
+			log.error("Could not write " + journalFile, e);
+		}
+	}
+
+	private void write(String event, Transition transition) throws IOException {
+		StringBuilder line = new StringBuilder(event).append('\t').append(transition.id);
+		if (ADD.equals(event)) {
+			line.append('\t').append(escape(transition.issueKey))
+					.append('\t').append(escape(transition.username))
+					.append('\t').append(escape(transition.actionName))
+					.append('\t').append(escape(transition.resolution));
+		}
+		journal.write(line.append('\n').toString());
+		journal.flush();
+	}
+
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				log.error("Could not close " + journalFile);
+			}
+			journal = null;
+			journalStream = null;
+		}
+	}
+
+	private static String escape(String value) {
+		if (value == null) {
+			return "\\0";
+		}
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String value) {
+		if ("\\0".equals(value)) {
+			return null;
+		}
+		StringBuilder result = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char next = value.charAt(++i);
+				result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			} else {
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @return the number of transitions waiting to be applied
+	 */
+	public int getPendingCount() {
+		synchronized (journalLock) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * @return the most recent transitions given up, latest first
+	 */
+	public List<String> getRecentFailures() {
+		synchronized (journalLock) {
+			return new ArrayList<String>(recentFailures);
+		}
+	}
+
+	public String toString() {
+		return "TransitionQueue[pending=" + getPendingCount() + ", applied=" + applied.get()
+				+ ", retried=" + retried.get() + ", failed=" + failed.get() + "]";
+	}
+}
@@ -0,0 +1,230 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.jira.ComponentManager;
+import com.atlassian.jira.user.UserUtils;
+import com.atlassian.jira.user.util.UserManager;
+
+/**
+ * In-memory index from the (lower case) email addresses of the JIRA users
+ * to their user names, used to identify the senders and Cc'ed users of the
+ * messages without scanning the user directory, which is what
+ * {@link UserUtils#getUserByEmail(String)} does.
+ * <p>
+ * The index is loaded when the plugin starts and maintained from the user
+ * created, updated and deleted events (see {@link EmailHandlerEventListener}).
+ * Every hit is checked against the user it points to, so a stale entry is
+ * never returned. Addresses unknown to JIRA - spam, external senders - are
+ * kept in a bounded negative cache, so that they cost one directory scan
+ * per {@link #UNKNOWN_TTL} at most. Until the index is loaded, lookups go
+ * to the directory.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class UserEmailIndex {
+
+	private static final Logger log = Logger.getLogger(UserEmailIndex.class);
+
+	/** Maximum number of unknown addresses remembered. */
+	public static final int UNKNOWN_MAX_SIZE = 10000;
+
+	/** Time an unknown address is remembered, in milliseconds. */
+	public static final long UNKNOWN_TTL = 10 * 60 * 1000L;
+
+	private static final UserEmailIndex INSTANCE = new UserEmailIndex();
+
+	private final ConcurrentHashMap<String, String> usernamesByEmail = new ConcurrentHashMap<String, String>();
+	private final ConcurrentHashMap<String, String> emailsByUsername = new ConcurrentHashMap<String, String>();
+	private final BoundedCache<String, Boolean> unknownEmails = new BoundedCache<String, Boolean>(UNKNOWN_MAX_SIZE, UNKNOWN_TTL);
+
+	private volatile boolean loaded = false;
+	private final AtomicBoolean loading = new AtomicBoolean(false);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong unknownHits = new AtomicLong();
+	private final AtomicLong directoryLookups = new AtomicLong();
+
+	private UserEmailIndex() {
+		// Singleton
+	}
+
+	/**
+	 * @return the index shared by all handlers
+	 */
+	public static UserEmailIndex getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the user having a given email address, like
+	 * {@link UserUtils#getUserByEmail(String)}.
+	 *
+	 * @param email  an email address
+	 * @return  the user having the address <code>email</code>, or <code>null</code> if there is none
+	 */
+	public User getUserByEmail(String email) {
+		if (email == null) {
+			return null;
+		}
+		String key = normalize(email);
+		if (loaded) {
+			String username = usernamesByEmail.get(key);
+			if (username != null) {
+				User user = UserUtils.getUser(username);
+				if (user != null && user.getEmailAddress() != null && key.equals(normalize(user.getEmailAddress()))) {
+					hits.incrementAndGet();
+					return user;
+				}
+				// Stale entry, an event was missed
+				remove(username);
+			}
+			if (unknownEmails.get(key) != null) {
+				unknownHits.incrementAndGet();
+				return null;
+			}
+		}
+		directoryLookups.incrementAndGet();
+		User user = UserUtils.getUserByEmail(email);
+		if (user != null) {
+			add(user.getName(), user.getEmailAddress());
+		} else if (loaded) {
+			unknownEmails.put(key, Boolean.TRUE);
+		}
+		return user;
+	}
+
+	/**
+	 * Loads the index from the user directory, in a background thread, unless
+	 * it is already loaded or being loaded.
+	 */
+	public void loadInBackground() {
+		if (loaded || !loading.compareAndSet(false, true)) {
+			return;
+		}
+		Thread loader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					load();
+				} finally {
+					loading.set(false);
+				}
+			}
+		}, "emailhandler-user-index");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	private void load() {
+		try {
+			UserManager userManager = ComponentManager.getComponentInstanceOfType(UserManager.class);
+			long start = System.currentTimeMillis();
+			int count = 0;
+			for (User user : userManager.getUsers()) {
+				add(user.getName(), user.getEmailAddress());
+				count++;
+			}
+			unknownEmails.clear();
+			loaded = true;
+			log.info("Indexed the email addresses of " + count + " users in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} catch (RuntimeException e) {
+			log.error("Could not index the email addresses of the users, falling back to directory lookups", e);
+		}
+	}
+
+	/**
+	 * Drops the index, and loads it again in the background.
+	 */
+	public void reload() {
+		loaded = false;
+		usernamesByEmail.clear();
+		emailsByUsername.clear();
+		unknownEmails.clear();
+		loadInBackground();
+	}
+
+	/**
+	 * Records a created or updated user.
+	 *
+	 * @param username  the name of the user
+	 * @param email  the current email address of the user
+	 */
+	public void add(String username, String email) {
+		if (username == null) {
+			return;
+		}
+		String previousEmail = (email != null
+				? emailsByUsername.put(username, normalize(email))
+				: emailsByUsername.remove(username));
+		if (previousEmail != null) {
+			usernamesByEmail.remove(previousEmail, username);
+		}
+		if (email != null) {
+			String key = normalize(email);
+			// Like UserUtils.getUserByEmail, the first user found having the address wins
+			usernamesByEmail.putIfAbsent(key, username);
+			unknownEmails.remove(key);
+		}
+	}
+
+	/**
+	 * Records a deleted user.
+	 *
+	 * @param username  the name of the user
+	 */
+	public void remove(String username) {
+		if (username == null) {
+			return;
+		}
+		String email = emailsByUsername.remove(username);
+		if (email != null) {
+			usernamesByEmail.remove(email, username);
+		}
+	}
+
+	/**
+	 * @return whether the index was loaded from the user directory
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * @return the number of lookups answered by the index
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups answered by the negative cache
+	 */
+	public long getUnknownHits() {
+		return unknownHits.get();
+	}
+
+	/**
+	 * @return the number of lookups which went to the user directory
+	 */
+	public long getDirectoryLookups() {
+		return directoryLookups.get();
+	}
+
+	public String toString() {
+		return "UserEmailIndex[loaded=" + loaded + ", users=" + emailsByUsername.size()
+				+ ", unknown=" + unknownEmails.size() + ", hits=" + hits.get()
+				+ ", unknownHits=" + unknownHits.get()
+				+ ", directoryLookups=" + directoryLookups.get() + "]";
+	}
+
+	private static String normalize(String email) {
+		return email.trim().toLowerCase(Locale.ENGLISH);
+	}
+}
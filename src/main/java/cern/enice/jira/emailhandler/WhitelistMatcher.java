@@ -0,0 +1,165 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The whitelist of the sender addresses (JMH-17), compiled once from the
+ * whitelist expressions of a handler. An address is accepted if it fully
+ * matches one of the expressions, as with {@link Pattern#matches(String, CharSequence)}.
+ * <p>
+ * The usual forms are not evaluated as regular expressions:
+ * <ul>
+ * <li><code>.*@cern\.ch</code> accepts the addresses of one domain, found in a hash set;</li>
+ * <li><code>.*@.*\.cern\.ch</code> accepts the addresses of the sub-domains of a
+ * domain, found by looking up each parent domain of the address in a hash set.</li>
+ * </ul>
+ * The other expressions are combined into a single alternation, except
+ * those using back references, which are evaluated one by one. Invalid
+ * expressions are ignored. The verdicts are cached per address.
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+final class WhitelistMatcher {
+
+	private static final Logger log = Logger.getLogger(WhitelistMatcher.class);
+
+	/** Maximum number of addresses whose verdict is cached. */
+	static final int VERDICT_CACHE_SIZE = 10000;
+
+	private static final String DOMAIN_PREFIX = ".*@";
+	private static final String SUBDOMAIN_PREFIX = ".*@.*\\.";
+	/** A domain name with escaped dots, e.g. <code>cern\.ch</code>. */
+	private static final Pattern LITERAL_DOMAIN = Pattern.compile("(?:[A-Za-z0-9_-]|\\\\\\.)+");
+	private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<");
+
+	private final Set<String> domains = new HashSet<String>();
+	private final Set<String> parentDomains = new HashSet<String>();
+	private final Pattern combined;
+	private final List<Pattern> others = new ArrayList<Pattern>();
+	private final boolean empty;
+
+	private final BoundedCache<String, Boolean> verdicts = new BoundedCache<String, Boolean>(VERDICT_CACHE_SIZE, 0);
+
+	/**
+	 * @param expressions  the whitelist expressions
+	 */
+	WhitelistMatcher(Collection<String> expressions) {
+		List<String> alternatives = new ArrayList<String>();
+		for (String expression : expressions) {
+			if (expression.startsWith(SUBDOMAIN_PREFIX)
+					&& isLiteralDomain(expression.substring(SUBDOMAIN_PREFIX.length()))) {
+				parentDomains.add(unescape(expression.substring(SUBDOMAIN_PREFIX.length())));
+			} else if (expression.startsWith(DOMAIN_PREFIX)
+					&& isLiteralDomain(expression.substring(DOMAIN_PREFIX.length()))) {
+				domains.add(unescape(expression.substring(DOMAIN_PREFIX.length())));
+			} else {
+				Pattern pattern;
+				try {
+					pattern = Pattern.compile(expression);
+				} catch (PatternSyntaxException e) {
+					log.warn("Ignoring invalid whitelist expression '" + expression + "': " + e.getMessage());
+					continue;
+				}
+				if (BACK_REFERENCE.matcher(expression).find()) {
+					// Group numbers would shift in an alternation
+					others.add(pattern);
+				} else {
+					alternatives.add(expression);
+				}
+			}
+		}
+		combined = combine(alternatives);
+		empty = domains.isEmpty() && parentDomains.isEmpty() && combined == null && others.isEmpty();
+		log.debug("Whitelist compiled: " + domains.size() + " domains, " + parentDomains.size()
+				+ " parent domains, " + alternatives.size() + " combined and "
+				+ others.size() + " separate expressions");
+	}
+
+	private Pattern combine(List<String> alternatives) {
+		if (alternatives.isEmpty()) {
+			return null;
+		}
+		StringBuilder regex = new StringBuilder();
+		for (String alternative : alternatives) {
+			if (regex.length() > 0) {
+				regex.append('|');
+			}
+			regex.append("(?:").append(alternative).append(')');
+		}
+		try {
+			return Pattern.compile(regex.toString());
+		} catch (PatternSyntaxException e) {
+			// e.g. an expression ending with a comment or a quote not closed
+			log.debug("Could not combine the whitelist expressions, evaluating them one by one", e);
+			for (String alternative : alternatives) {
+				others.add(Pattern.compile(alternative));
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return whether there is no (valid) whitelist expression
+	 */
+	boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * @param address  the address of a sender, or <code>null</code>
+	 * @return whether <code>address</code> matches a whitelist expression
+	 */
+	boolean matches(String address) {
+		if (address == null) {
+			return false;
+		}
+		Boolean verdict = verdicts.get(address);
+		if (verdict == null) {
+			verdict = Boolean.valueOf(evaluate(address));
+			verdicts.put(address, verdict);
+		}
+		return verdict.booleanValue();
+	}
+
+	private boolean evaluate(String address) {
+		int at = address.lastIndexOf('@');
+		if (at >= 0) {
+			// The domain expressions contain no '@', so they can only match after the last one
+			if (domains.contains(address.substring(at + 1))) {
+				return true;
+			}
+			if (!parentDomains.isEmpty()) {
+				for (int dot = address.indexOf('.', at + 1); dot >= 0; dot = address.indexOf('.', dot + 1)) {
+					if (parentDomains.contains(address.substring(dot + 1))) {
+						return true;
+					}
+				}
+			}
+		}
+		if (combined != null && combined.matcher(address).matches()) {
+			return true;
+		}
+		for (Pattern pattern : others) {
+			if (pattern.matcher(address).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isLiteralDomain(String regex) {
+		return LITERAL_DOMAIN.matcher(regex).matches();
+	}
+
+	private static String unescape(String regex) {
+		return regex.replace("\\.", ".");
+	}
+}
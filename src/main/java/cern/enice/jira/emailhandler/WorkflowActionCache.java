@@ -0,0 +1,150 @@
+package cern.enice.jira.emailhandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.ofbiz.core.entity.GenericValue;
+
+import com.atlassian.jira.workflow.JiraWorkflow;
+import com.opensymphony.workflow.loader.ActionDescriptor;
+import com.opensymphony.workflow.loader.StepDescriptor;
+import com.opensymphony.workflow.loader.WorkflowDescriptor;
+
+/**
+ * Maps the workflow action names (e.g. "Resolve Issue") to their ids, per
+ * workflow and status, so that resolving the transition requested by a
+ * message is a map lookup. Several actions may have the same name, e.g.
+ * with different conditions: all their ids are kept, in workflow order.
+ * Whether the user may perform an action is not cached, it is checked for
+ * each message.
+ * <p>
+ * JIRA 5.1 has no event for a published workflow, but publishing replaces
+ * the descriptor of the workflow: an entry built from another descriptor
+ * than the current one is rebuilt. The cache is also dropped when JIRA
+ * clears its caches (see {@link EmailHandlerEventListener}).
+ * <p>Released under the BSD License: see file license.txt for details.
+ *
+ */
+public class WorkflowActionCache {
+
+	private static final Logger log = Logger.getLogger(WorkflowActionCache.class);
+
+	private static final WorkflowActionCache INSTANCE = new WorkflowActionCache();
+
+	/** The actions available from one status of one workflow. */
+	private static final class Actions {
+		final WorkflowDescriptor descriptor;
+		final Map<String, List<Integer>> idsByName;
+
+		Actions(WorkflowDescriptor descriptor, Map<String, List<Integer>> idsByName) {
+			this.descriptor = descriptor;
+			this.idsByName = Collections.unmodifiableMap(idsByName);
+		}
+	}
+
+	private final ConcurrentHashMap<String, Actions> actions = new ConcurrentHashMap<String, Actions>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+
+	private WorkflowActionCache() {
+		// Singleton
+	}
+
+	/**
+	 * @return the cache shared by all handlers
+	 */
+	public static WorkflowActionCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Finds an action of a workflow, available from a status, by name.
+	 *
+	 * @param workflow  a workflow
+	 * @param status  a status of the workflow
+	 * @param actionName  the name of an action, case insensitive
+	 * @return  the ids of the actions having this name, in workflow order, empty if there is no such action from <code>status</code>
+	 */
+	public List<Integer> getActionIds(JiraWorkflow workflow, GenericValue status, String actionName) {
+		if (actionName == null || status == null) {
+			return Collections.emptyList();
+		}
+		WorkflowDescriptor descriptor = workflow.getDescriptor();
+		String key = workflow.getName() + "|" + status.getString("id");
+		Actions entry = actions.get(key);
+		if (entry != null && entry.descriptor == descriptor) {
+			hits.incrementAndGet();
+		} else {
+			entry = build(workflow, status);
+			actions.put(key, entry);
+		}
+		List<Integer> ids = entry.idsByName.get(normalize(actionName));
+		return (ids != null ? ids : Collections.<Integer>emptyList());
+	}
+
+	@SuppressWarnings("unchecked")
+	private Actions build(JiraWorkflow workflow, GenericValue status) {
+		builds.incrementAndGet();
+		WorkflowDescriptor descriptor = workflow.getDescriptor();
+		Map<String, List<Integer>> idsByName = new HashMap<String, List<Integer>>();
+		StepDescriptor step = workflow.getLinkedStep(status);
+		if (step != null) {
+			addActions(idsByName, step.getActions());
+		}
+		addActions(idsByName, descriptor.getGlobalActions());
+		log.debug("Cached " + idsByName.size() + " actions of workflow " + workflow.getName()
+				+ " for status " + status.getString("name"));
+		return new Actions(descriptor, idsByName);
+	}
+
+	private static void addActions(Map<String, List<Integer>> idsByName, List<ActionDescriptor> actionDescriptors) {
+		for (ActionDescriptor action : actionDescriptors) {
+			String name = normalize(action.getName());
+			List<Integer> ids = idsByName.get(name);
+			if (ids == null) {
+				ids = new ArrayList<Integer>(1);
+				idsByName.put(name, ids);
+			}
+			ids.add(Integer.valueOf(action.getId()));
+		}
+	}
+
+	/**
+	 * Drops the cache; it will be rebuilt on next use.
+	 */
+	public void invalidate() {
+		actions.clear();
+		log.debug("Workflow action cache invalidated");
+	}
+
+	/**
+	 * @return the number of lookups answered from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of entries built
+	 */
+	public long getBuilds() {
+		return builds.get();
+	}
+
+	public String toString() {
+		return "WorkflowActionCache[entries=" + actions.size() + ", hits=" + hits.get()
+				+ ", builds=" + builds.get() + "]";
+	}
+
+	private static String normalize(String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+}
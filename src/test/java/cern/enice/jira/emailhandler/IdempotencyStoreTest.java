@@ -0,0 +1,150 @@
+package cern.enice.jira.emailhandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.enice.jira.emailhandler.IdempotencyStore.Claim;
+
+public class IdempotencyStoreTest {
+
+	private File logFile;
+	private IdempotencyStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		logFile = File.createTempFile("idempotency", ".log");
+		logFile.delete();
+		store = new IdempotencyStore(logFile);
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+		logFile.delete();
+		new File(logFile.getPath() + ".tmp").delete();
+	}
+
+	private void writeLog(String... lines) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(logFile), "US-ASCII");
+		try {
+			for (String line : lines) {
+				writer.write(line);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private List<String> readLog() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "US-ASCII"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	@Test
+	public void parseUnsignedHex() {
+		assertEquals(0L, IdempotencyStore.parseUnsignedHex("0"));
+		assertEquals(0x1234L, IdempotencyStore.parseUnsignedHex("1234"));
+		assertEquals(Long.MAX_VALUE, IdempotencyStore.parseUnsignedHex("7fffffffffffffff"));
+		assertEquals(Long.MIN_VALUE, IdempotencyStore.parseUnsignedHex("8000000000000000"));
+		assertEquals(-1L, IdempotencyStore.parseUnsignedHex("ffffffffffffffff"));
+		assertEquals(0xdeadbeef00000001L, IdempotencyStore.parseUnsignedHex("deadbeef00000001"));
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void parseUnsignedHexRejectsGarbage() {
+		IdempotencyStore.parseUnsignedHex("xyz");
+	}
+
+	@Test
+	public void formattedLinesParseBack() {
+		long[] digests = { 0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 0x0123456789abcdefL, 0xfedcba9876543210L };
+		for (long digest : digests) {
+			String line = IdempotencyStore.formatLine(digest, 1350000000000L);
+			assertTrue(line.endsWith("\n"));
+			String[] fields = line.substring(0, line.length() - 1).split(" ");
+			assertEquals(2, fields.length);
+			assertEquals(1350000000000L, Long.parseLong(fields[0], 16));
+			assertEquals(digest, IdempotencyStore.parseUnsignedHex(fields[1]));
+		}
+	}
+
+	@Test
+	public void bloomFilterHasNoFalseNegatives() {
+		assertFalse(store.mightContain(42L));
+		for (long digest = -500; digest < 500; digest++) {
+			store.claim(Long.valueOf(digest * 0x9e3779b97f4a7c15L));
+			store.commit(Long.valueOf(digest * 0x9e3779b97f4a7c15L));
+		}
+		for (long digest = -500; digest < 500; digest++) {
+			assertTrue(store.mightContain(digest * 0x9e3779b97f4a7c15L));
+		}
+	}
+
+	@Test
+	public void claimCommitAndRelease() {
+		Long digest = Long.valueOf(0x1234L);
+		assertSame(Claim.CLAIMED, store.claim(digest));
+		assertSame(Claim.IN_PROGRESS, store.claim(digest));
+		store.release(digest);
+		assertSame(Claim.CLAIMED, store.claim(digest));
+		store.commit(digest);
+		assertSame(Claim.DUPLICATE, store.claim(digest));
+	}
+
+	@Test
+	public void committedMessagesSurviveARestart() throws IOException {
+		Long digest = Long.valueOf(-1L);
+		assertSame(Claim.CLAIMED, store.claim(digest));
+		store.commit(digest);
+		store.close();
+		assertEquals(1, readLog().size());
+		assertSame(Claim.DUPLICATE, store.claim(digest));
+		assertSame(Claim.CLAIMED, store.claim(Long.valueOf(1L)));
+	}
+
+	@Test
+	public void malformedAndExpiredLinesAreDropped() throws IOException {
+		long now = System.currentTimeMillis();
+		long expired = now - IdempotencyStore.RETENTION - 1000;
+		writeLog(IdempotencyStore.formatLine(0xaL, now),
+				"garbage\n",
+				IdempotencyStore.formatLine(0xbL, expired),
+				IdempotencyStore.formatLine(0x8000000000000000L, now),
+				Long.toHexString(now) + " \n", // truncated by a crash
+				"\n");
+		assertSame(Claim.DUPLICATE, store.claim(Long.valueOf(0xaL)));
+		assertSame(Claim.CLAIMED, store.claim(Long.valueOf(0xbL)));
+		assertSame(Claim.DUPLICATE, store.claim(Long.valueOf(Long.MIN_VALUE)));
+
+		// Rewritten with the live messages only when loaded
+		List<String> lines = readLog();
+		assertEquals(2, lines.size());
+		assertEquals(IdempotencyStore.formatLine(0xaL, now), lines.get(0) + "\n");
+	}
+}
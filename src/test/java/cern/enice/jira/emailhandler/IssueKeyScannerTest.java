@@ -0,0 +1,151 @@
+package cern.enice.jira.emailhandler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IssueKeyScannerTest {
+
+	/** Projects ABC (100 issues), AB (10 issues) and X (5 issues). */
+	private static final class FakeProjectSource implements IssueKeyScanner.ProjectSource {
+		final Map<Long, String> keys = new LinkedHashMap<Long, String>();
+		final Map<Long, Long> counters = new HashMap<Long, Long>();
+		final Set<String> otherKeys = new HashSet<String>();
+		int listings;
+		int counterReads;
+
+		FakeProjectSource() {
+			add(1L, "ABC", 100);
+			add(2L, "AB", 10);
+			add(3L, "X", 5);
+		}
+
+		void add(long id, String key, long counter) {
+			keys.put(Long.valueOf(id), key);
+			counters.put(Long.valueOf(id), Long.valueOf(counter));
+		}
+
+		public Map<Long, String> getProjectKeys() {
+			listings++;
+			return new LinkedHashMap<Long, String>(keys);
+		}
+
+		public long getCounter(Long projectId) {
+			counterReads++;
+			Long counter = counters.get(projectId);
+			return (counter != null ? counter.longValue() : 0);
+		}
+
+		public boolean exists(String projectKey) {
+			return keys.containsValue(projectKey) || otherKeys.contains(projectKey);
+		}
+	}
+
+	private FakeProjectSource projects;
+	private IssueKeyScanner scanner;
+
+	@Before
+	public void setUp() {
+		projects = new FakeProjectSource();
+		scanner = new IssueKeyScanner(projects);
+	}
+
+	private void assertKeys(String text, String... keys) {
+		assertEquals(text, Arrays.asList(keys), scanner.findIssueKeys(text));
+	}
+
+	@Test
+	public void keysInOrderOfAppearance() {
+		assertKeys("Re: ABC-12 done, see X-2 and AB-3", "ABC-12", "X-2", "AB-3");
+	}
+
+	@Test
+	public void keyThatIsAPrefixOfAnother() {
+		assertKeys("ABC-50", "ABC-50");
+		assertKeys("AB-5", "AB-5");
+		assertKeys("ABX-5");
+	}
+
+	@Test
+	public void keysIgnoreCase() {
+		assertKeys("fixed in abc-3 and Ab-4", "ABC-3", "AB-4");
+	}
+
+	@Test
+	public void keysMustNotTouchLettersOrDigits() {
+		assertKeys("(ABC-1), [X-2]. ABC-3", "ABC-1", "X-2", "ABC-3");
+		assertKeys("XABC-1");
+		assertKeys("1ABC-1");
+		assertKeys("ABC-1x");
+		assertKeys("ABC-12a");
+	}
+
+	@Test
+	public void keysNeedANumber() {
+		assertKeys("ABC- and ABC-x and UTF-8");
+		assertKeys("ABC-0");
+		assertKeys("no dash at all");
+		assertEquals(Collections.emptyList(), scanner.findIssueKeys(null));
+	}
+
+	@Test
+	public void numbersAreLimitedTo18Digits() {
+		// Out of the range of the project, but returned as the counter may be stale
+		assertKeys("ABC-999999999999999999", "ABC-999999999999999999");
+		assertKeys("ABC-1000000000000000000");
+	}
+
+	@Test
+	public void counterIsReadAgainAboveIt() {
+		assertKeys("ABC-100", "ABC-100");
+		projects.counters.put(Long.valueOf(1L), Long.valueOf(200L));
+		int reads = projects.counterReads;
+		assertKeys("ABC-150", "ABC-150");
+		assertEquals(reads + 1, projects.counterReads);
+		// Within the counter read, no further read
+		assertKeys("ABC-160", "ABC-160");
+		assertEquals(reads + 1, projects.counterReads);
+	}
+
+	@Test
+	public void keyAboveTheCounterIsStillReturned() {
+		assertKeys("X-6", "X-6");
+	}
+
+	@Test
+	public void keyOfAProjectMissingFromTheTrie() {
+		assertKeys("NEW-7");
+		assertEquals(1, projects.listings);
+		projects.otherKeys.add("NEW");
+		assertKeys("Re: new-7", "NEW-7");
+		// The trie is rebuilt on next use
+		assertKeys("ABC-1", "ABC-1");
+		assertEquals(2, projects.listings);
+	}
+
+	@Test
+	public void wordsLookingLikeKeysOfNoProject() {
+		assertKeys("UTF-8 and ISO-8859-1");
+		assertKeys("FOO-1 and 9A-1");
+		assertEquals(1, projects.listings);
+	}
+
+	@Test
+	public void invalidatedTrieIsRebuilt() {
+		assertKeys("Y-1");
+		projects.add(4L, "Y", 1);
+		scanner.invalidate();
+		assertKeys("Y-1", "Y-1");
+		assertEquals(2, projects.listings);
+	}
+}
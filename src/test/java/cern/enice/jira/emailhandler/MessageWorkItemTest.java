@@ -0,0 +1,92 @@
+package cern.enice.jira.emailhandler;
+
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.enice.jira.emailhandler.IdempotencyStore.Claim;
+
+public class MessageWorkItemTest {
+
+	private static final Long DIGEST = Long.valueOf(0x5eedL);
+
+	private File logFile;
+	private IdempotencyStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		logFile = File.createTempFile("idempotency", ".log");
+		logFile.delete();
+		store = new IdempotencyStore(logFile);
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+		logFile.delete();
+		new File(logFile.getPath() + ".tmp").delete();
+	}
+
+	/**
+	 * The first copy of a message, claimed and handed over to the pipeline
+	 * as the handler does, the handler then returning PENDING.
+	 */
+	private MessageWorkItem handOver() {
+		assertSame(Claim.CLAIMED, store.claim(DIGEST));
+		MessageWorkItem work = new MessageWorkItem(null, null);
+		work.setClaim(store, DIGEST);
+		MessageWorkItem detached = new MessageWorkItem(null, null);
+		work.transferClaim(detached);
+		// The message is kept in the mailbox for now
+		work.settleClaim(false);
+		return detached;
+	}
+
+	@Test
+	public void pipelinedDuplicateIsKeptUntilTheFirstCopyIsPersisted() {
+		MessageWorkItem detached = handOver();
+		// The second copy, read from another mailbox meanwhile
+		assertSame(Claim.IN_PROGRESS, store.claim(DIGEST));
+		detached.complete(true);
+		detached.finish();
+		assertSame(Claim.DUPLICATE, store.claim(DIGEST));
+	}
+
+	@Test
+	public void failedPipelinedCopyReleasesTheClaim() {
+		MessageWorkItem detached = handOver();
+		assertSame(Claim.IN_PROGRESS, store.claim(DIGEST));
+		detached.complete(false);
+		detached.finish();
+		assertSame(Claim.CLAIMED, store.claim(DIGEST));
+	}
+
+	@Test
+	public void copyFinishedBeforeTheHandOver() {
+		assertSame(Claim.CLAIMED, store.claim(DIGEST));
+		MessageWorkItem work = new MessageWorkItem(null, null);
+		work.setClaim(store, DIGEST);
+		MessageWorkItem detached = new MessageWorkItem(null, null);
+		detached.complete(true);
+		detached.finish();
+		work.transferClaim(detached);
+		work.settleClaim(false);
+		assertSame(Claim.DUPLICATE, store.claim(DIGEST));
+	}
+
+	@Test
+	public void synchronousProcessingSettlesTheClaim() {
+		assertSame(Claim.CLAIMED, store.claim(DIGEST));
+		MessageWorkItem work = new MessageWorkItem(null, null);
+		work.setClaim(store, DIGEST);
+		work.settleClaim(true);
+		// Settled once
+		work.settleClaim(false);
+		assertSame(Claim.DUPLICATE, store.claim(DIGEST));
+	}
+}
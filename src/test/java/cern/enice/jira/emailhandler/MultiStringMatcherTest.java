@@ -0,0 +1,98 @@
+package cern.enice.jira.emailhandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MultiStringMatcherTest {
+
+	private static MultiStringMatcher matcher(String... strings) {
+		return new MultiStringMatcher(Arrays.asList(strings));
+	}
+
+	@Test
+	public void findsAnyOfTheStrings() {
+		MultiStringMatcher matcher = matcher("-----Original Message-----", "From:", "Von:");
+		assertTrue(matcher.containsAny("-----Original Message-----"));
+		assertTrue(matcher.containsAny("> From: john.doe@cern.ch"));
+		assertTrue(matcher.containsAny("Von: Hans"));
+		assertFalse(matcher.containsAny("Hello, thanks for the fix"));
+		assertFalse(matcher.containsAny("-----Original Message----"));
+	}
+
+	@Test
+	public void followsFailureLinks() {
+		// The classic Aho-Corasick example: matches end inside other strings
+		MultiStringMatcher matcher = matcher("he", "she", "his", "hers");
+		assertTrue(matcher.containsAny("ushers"));
+		assertTrue(matcher.containsAny("ahis"));
+		assertTrue(matcher.containsAny("sshe"));
+		assertFalse(matcher.containsAny("hs"));
+		assertFalse(matcher.containsAny("sih"));
+	}
+
+	@Test
+	public void stringEndingInsideALongerCandidate() {
+		// "abcd" fails on 'x' after "abc", where "bc" is complete
+		MultiStringMatcher matcher = matcher("abcd", "bc");
+		assertTrue(matcher.containsAny("abcx"));
+		assertFalse(matcher.containsAny("abxcd"));
+	}
+
+	@Test
+	public void emptyStringIsContainedInAnyText() {
+		assertTrue(matcher("").containsAny(""));
+		assertTrue(matcher("abc", "").containsAny("xyz"));
+	}
+
+	@Test
+	public void noString() {
+		MultiStringMatcher matcher = new MultiStringMatcher(Collections.<String>emptyList());
+		assertFalse(matcher.containsAny(""));
+		assertFalse(matcher.containsAny("anything"));
+	}
+
+	@Test
+	public void nonAsciiStrings() {
+		MultiStringMatcher matcher = matcher("Gesendet: ", "Envoy\u00e9 : ");
+		assertTrue(matcher.containsAny("Envoy\u00e9 : lundi"));
+		assertFalse(matcher.containsAny("Envoye : lundi"));
+	}
+
+	@Test
+	public void sameResultAsIndexOf() {
+		Random random = new Random(42);
+		for (int round = 0; round < 500; round++) {
+			List<String> strings = new ArrayList<String>();
+			int count = 1 + random.nextInt(5);
+			for (int i = 0; i < count; i++) {
+				strings.add(randomString(random, 1 + random.nextInt(4)));
+			}
+			MultiStringMatcher matcher = new MultiStringMatcher(strings);
+			String text = randomString(random, random.nextInt(20));
+			boolean expected = false;
+			for (String string : strings) {
+				expected |= text.indexOf(string) >= 0;
+			}
+			assertEquals(strings + " in " + text, Boolean.valueOf(expected),
+					Boolean.valueOf(matcher.containsAny(text)));
+		}
+	}
+
+	/** Over a small alphabet, so that strings overlap often. */
+	private static String randomString(Random random, int length) {
+		StringBuilder string = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			string.append((char) ('a' + random.nextInt(3)));
+		}
+		return string.toString();
+	}
+}
@@ -0,0 +1,64 @@
+package cern.enice.jira.emailhandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class RegexCommentHandlerTest {
+
+	private static int findSplit(String perlRegex, String body) {
+		return RegexCommentHandler.findSplit(Pattern.compile(RegexCommentHandler.toJavaRegex(perlRegex)), body);
+	}
+
+	@Test
+	public void bodyIsSplitAtTheFirstSeparator() {
+		assertEquals(1, findSplit("/--/", "a--b"));
+		assertEquals(1, findSplit("/--/", "a--b--c"));
+		assertEquals(-1, findSplit("/--/", "abc"));
+	}
+
+	@Test
+	public void trailingSeparatorsLeaveTheBodyUnchanged() {
+		// Perl's split drops the trailing empty fields: a single field remains
+		assertEquals(-1, findSplit("/--/", "a--"));
+		assertEquals(-1, findSplit("/--/", "a------"));
+		assertEquals(1, findSplit("/--/", "a----b"));
+	}
+
+	@Test
+	public void separatorAtTheStart() {
+		// The leading empty field is kept, as by Perl
+		assertEquals(0, findSplit("/--/", "--a"));
+		assertEquals(-1, findSplit("/--/", "--"));
+	}
+
+	@Test
+	public void emptyMatches() {
+		// An empty match at the start does not split
+		assertEquals(1, findSplit("/(?=b)/", "bb"));
+		assertEquals(1, findSplit("/(?=b)/", "ab"));
+		assertEquals(-1, findSplit("/x*/", ""));
+	}
+
+	@Test
+	public void lineAnchorsSeeTheWholeBody() {
+		String body = "Thanks\n-----Original Message-----\n> quoted";
+		assertEquals(7, findSplit("/^-----Original Message-----/m", body));
+		assertEquals(-1, findSplit("/^-----Original Message-----/", body));
+		// The newline between the separators is a field
+		assertEquals(1, findSplit("/^--|--$/m", "a--\n--"));
+		assertEquals(1, findSplit("/--$/m", "a--\nb--"));
+	}
+
+	@Test
+	public void flagsAndDelimiters() {
+		assertEquals(3, findSplit("/FROM:/i", "ok from: someone"));
+		assertEquals(2, findSplit("m{--}", "ok--x"));
+		assertEquals(1, findSplit("m#--#", "a--b"));
+		assertNull(RegexCommentHandler.toJavaRegex("-----Original Message-----"));
+		assertNull(RegexCommentHandler.toJavaRegex("/"));
+	}
+}
@@ -0,0 +1,109 @@
+package cern.enice.jira.emailhandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SubjectRewriteEngineTest {
+
+	/** Rules named after their position, given as pairs of regexp and replace pattern. */
+	private static SubjectRewriteEngine engine(String... regexpsAndReplaces) {
+		Map<String, SubjectRegexpReplace> rules = new LinkedHashMap<String, SubjectRegexpReplace>();
+		for (int i = 0; i < regexpsAndReplaces.length; i += 2) {
+			rules.put("subjectregexp" + (i / 2 + 1),
+					new SubjectRegexpReplace(regexpsAndReplaces[i], regexpsAndReplaces[i + 1]));
+		}
+		return new SubjectRewriteEngine(rules);
+	}
+
+	@Test
+	public void singleRule() {
+		SubjectRewriteEngine engine = engine("INC(\\d+)", "Incident $1");
+		assertEquals(Arrays.asList("Incident 42", "Incident 7"), engine.rewrite("INC42 and INC7"));
+		assertEquals(Collections.emptyList(), engine.rewrite("nothing to see"));
+	}
+
+	@Test
+	public void groupsAreOffsetByThePreviousRules() {
+		SubjectRewriteEngine engine = engine(
+				"(a)(b)(c)", "$3$2$1",
+				"(x)-(y)", "$2+$1",
+				"z(\\d)", "[$1]");
+		assertEquals(Arrays.asList("y+x", "cba", "[5]"), engine.rewrite("x-y abc z5"));
+	}
+
+	@Test
+	public void nonCapturingGroupsDoNotShiftTheOffsets() {
+		SubjectRewriteEngine engine = engine(
+				"(?:RT|rt)#(\\d+)", "RT $1",
+				"(?i)bug\\s+(\\d+)", "Bug $1");
+		assertEquals(Arrays.asList("Bug 3", "RT 12"), engine.rewrite("BUG 3, rt#12"));
+	}
+
+	@Test
+	public void replaceTemplate() {
+		SubjectRewriteEngine engine = engine("(\\w+)=(\\w+)", "$2 is $1 ($0)");
+		assertEquals(Arrays.asList("b is a (a=b)"), engine.rewrite("a=b"));
+	}
+
+	@Test
+	public void missingOrUnmatchedGroupsAreReplacedWithNothing() {
+		SubjectRewriteEngine engine = engine(
+				"(p)(q)?", "<$1$2$9>",
+				"(r)", "$1$2");
+		// $2 of the first rule did not participate, it has no $9, and the second rule has no $2
+		assertEquals(Arrays.asList("<p>", "r"), engine.rewrite("pr"));
+	}
+
+	@Test
+	public void firstRuleWinsAtTheSamePosition() {
+		assertEquals(Arrays.asList("first"), engine("abc", "first", "ab", "second").rewrite("abc"));
+		assertEquals(Arrays.asList("second"), engine("ab", "second", "abc", "first").rewrite("abc"));
+	}
+
+	@Test
+	public void matchesDoNotOverlap() {
+		SubjectRewriteEngine engine = engine("aa", "A");
+		assertEquals(Arrays.asList("A", "A"), engine.rewrite("aaaaa"));
+	}
+
+	@Test
+	public void rulesWithBackReferencesAreScannedSeparatelyAndLast() {
+		SubjectRewriteEngine engine = engine(
+				"(\\w)\\1", "double $1",
+				"(\\d+)", "number $1");
+		assertEquals(Arrays.asList("number 11", "double 1", "double o"), engine.rewrite("11 foo"));
+	}
+
+	@Test
+	public void defaultReplaceIsTheWholeMatch() {
+		Map<String, SubjectRegexpReplace> rules = new LinkedHashMap<String, SubjectRegexpReplace>();
+		rules.put("subjectregexp1", new SubjectRegexpReplace("[A-Z]+-\\d+"));
+		assertEquals(Arrays.asList("ABC-1"), new SubjectRewriteEngine(rules).rewrite("Re: ABC-1 done"));
+	}
+
+	@Test
+	public void ruleWithoutRegexpIsIgnored() {
+		Map<String, SubjectRegexpReplace> rules = new LinkedHashMap<String, SubjectRegexpReplace>();
+		rules.put("subjectregexp1", new SubjectRegexpReplace());
+		SubjectRewriteEngine engine = new SubjectRewriteEngine(rules);
+		assertTrue(engine.isEmpty());
+		assertEquals(Collections.emptyList(), engine.rewrite("anything"));
+	}
+
+	@Test
+	public void noRule() {
+		SubjectRewriteEngine engine = new SubjectRewriteEngine(Collections.<String, SubjectRegexpReplace>emptyMap());
+		assertTrue(engine.isEmpty());
+		assertEquals(Collections.emptyList(), engine.rewrite("anything"));
+		assertFalse(engine("x", "y").isEmpty());
+		assertEquals(Collections.emptyList(), engine("x", "y").rewrite(null));
+	}
+}
@@ -0,0 +1,66 @@
+package cern.enice.jira.emailhandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import cern.enice.jira.emailhandler.SubjectTagScanner.Tag;
+
+public class SubjectTagScannerTest {
+
+	private final SubjectTagScanner scanner = SubjectTagScanner.getInstance();
+
+	@Test
+	public void exactTagsMatchTheWholeToken() {
+		assertSame(Tag.ISSUETYPE_BUG, scanner.match("#BUG"));
+		assertSame(Tag.PRIORITY_BLOCKER, scanner.match("#BLOCKER"));
+		assertSame(Tag.WORKFLOW_RESOLVE, scanner.match("#RESOLVE"));
+		assertNull(scanner.match("#BUGS"));
+		assertNull(scanner.match("#BU"));
+	}
+
+	@Test
+	public void prefixTagsCarryAValue() {
+		assertSame(Tag.COMPONENT, scanner.match("#COMPONENT=Mail__Handler"));
+		assertEquals("Mail__Handler", Tag.COMPONENT.getValue("#COMPONENT=Mail__Handler"));
+		assertSame(Tag.WORKFLOW_TARGET, scanner.match("#WORKFLOW=Start"));
+		assertSame(Tag.DUEDATE, scanner.match("#DUE=2012-12-24"));
+	}
+
+	@Test
+	public void prefixTagWithoutValue() {
+		assertSame(Tag.ASSIGNEE, scanner.match("#ASSIGNEE="));
+		assertEquals("", Tag.ASSIGNEE.getValue("#ASSIGNEE="));
+	}
+
+	@Test
+	public void tagSharingAPrefixWithAnother() {
+		// #RESOLVE and #RESOLUTION= share "#RESOL"
+		assertSame(Tag.WORKFLOW_RESOLUTION, scanner.match("#RESOLUTION=Fixed"));
+		assertNull(scanner.match("#RESOLUTION"));
+		assertNull(scanner.match("#RESOLVED"));
+	}
+
+	@Test
+	public void tagsAreCaseSensitive() {
+		assertNull(scanner.match("#bug"));
+		assertNull(scanner.match("#Component=Mail"));
+	}
+
+	@Test
+	public void plainTextIsNotATag() {
+		assertNull(scanner.match(""));
+		assertNull(scanner.match("#"));
+		assertNull(scanner.match("BUG"));
+		assertNull(scanner.match("Printer"));
+	}
+
+	@Test
+	public void nonAsciiCharactersEndTheWalk() {
+		assertNull(scanner.match("#B\u00dcG"));
+		assertSame(Tag.COMPONENT, scanner.match("#COMPONENT=Z\u00fcrich"));
+		assertEquals("Z\u00fcrich", Tag.COMPONENT.getValue("#COMPONENT=Z\u00fcrich"));
+	}
+}
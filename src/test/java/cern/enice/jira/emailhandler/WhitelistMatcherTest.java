@@ -0,0 +1,93 @@
+package cern.enice.jira.emailhandler;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class WhitelistMatcherTest {
+
+	private static WhitelistMatcher whitelist(String... expressions) {
+		return new WhitelistMatcher(Arrays.asList(expressions));
+	}
+
+	@Test
+	public void domainExpression() {
+		WhitelistMatcher matcher = whitelist(".*@cern\\.ch");
+		assertTrue(matcher.matches("john.doe@cern.ch"));
+		assertFalse(matcher.matches("john.doe@mail.cern.ch"));
+		assertFalse(matcher.matches("john.doe@cern.ch.example.com"));
+		assertFalse(matcher.matches("john.doe@cernxch"));
+	}
+
+	@Test
+	public void subDomainExpression() {
+		WhitelistMatcher matcher = whitelist(".*@.*\\.cern\\.ch");
+		assertTrue(matcher.matches("john.doe@mail.cern.ch"));
+		assertTrue(matcher.matches("john.doe@a.b.cern.ch"));
+		assertFalse(matcher.matches("john.doe@cern.ch"));
+		assertFalse(matcher.matches("john.doe@notcern.ch"));
+	}
+
+	@Test
+	public void domainIsMatchedAfterTheLastAt() {
+		WhitelistMatcher matcher = whitelist(".*@cern\\.ch", ".*@.*\\.cern\\.ch");
+		assertTrue(matcher.matches("\"a@b\"@cern.ch"));
+		assertFalse(matcher.matches("x@cern.ch@example.com"));
+		assertFalse(matcher.matches("x@mail.cern.ch@example.com"));
+	}
+
+	@Test
+	public void otherExpressionsAreFullMatches() {
+		WhitelistMatcher matcher = whitelist("admin@.*", "[a-z]+\\.[a-z]+@example\\.org");
+		assertTrue(matcher.matches("admin@anywhere.net"));
+		assertTrue(matcher.matches("john.doe@example.org"));
+		assertFalse(matcher.matches("superadmin@anywhere.net"));
+		assertFalse(matcher.matches("john.doe@example.org.evil.com"));
+	}
+
+	@Test
+	public void expressionWithBackReference() {
+		WhitelistMatcher matcher = whitelist("(\\w+)@\\1\\.com", "(x)@y\\.com");
+		assertTrue(matcher.matches("acme@acme.com"));
+		assertFalse(matcher.matches("acme@other.com"));
+		assertTrue(matcher.matches("x@y.com"));
+	}
+
+	@Test
+	public void invalidExpressionIsIgnored() {
+		WhitelistMatcher matcher = whitelist("[unclosed", ".*@cern\\.ch");
+		assertTrue(matcher.matches("john.doe@cern.ch"));
+		assertFalse(matcher.matches("[unclosed"));
+		assertTrue(whitelist("[unclosed").isEmpty());
+	}
+
+	@Test
+	public void expressionsThatCannotBeCombined() {
+		// A trailing comment would swallow the closing parenthesis of the alternation
+		WhitelistMatcher matcher = whitelist("(?x)john@example\\.org # the admin", "jane@example\\.org");
+		assertTrue(matcher.matches("john@example.org"));
+		assertTrue(matcher.matches("jane@example.org"));
+		assertFalse(matcher.matches("jim@example.org"));
+	}
+
+	@Test
+	public void emptyWhitelist() {
+		WhitelistMatcher matcher = new WhitelistMatcher(Collections.<String>emptyList());
+		assertTrue(matcher.isEmpty());
+		assertFalse(matcher.matches("john.doe@cern.ch"));
+		assertFalse(matcher.matches(null));
+	}
+
+	@Test
+	public void cachedVerdictsAreStable() {
+		WhitelistMatcher matcher = whitelist(".*@cern\\.ch");
+		for (int i = 0; i < 3; i++) {
+			assertTrue(matcher.matches("john.doe@cern.ch"));
+			assertFalse(matcher.matches("john.doe@example.com"));
+		}
+	}
+}